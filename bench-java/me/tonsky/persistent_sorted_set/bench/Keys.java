@@ -0,0 +1,81 @@
+package me.tonsky.persistent_sorted_set.bench;
+
+import java.util.*;
+import clojure.lang.*;
+import me.tonsky.persistent_sorted_set.*;
+
+// Deterministic keys of a given type. key(type, n) is monotonic in n,
+// so generated arrays are already sorted. Sets are built from even n,
+// odd n are guaranteed misses / fresh inserts
+@SuppressWarnings("unchecked")
+public class Keys {
+  public static final String LONG   = "long";
+  public static final String STRING = "string";
+  public static final String TUPLE  = "tuple";
+
+  public static Object key(String type, long n) {
+    switch (type) {
+      case LONG:
+        return n;
+      case STRING:
+        return pad(n);
+      case TUPLE:
+        return LazilyPersistentVector.createOwning(new Object[] {n >>> 10, pad(n)});
+      default:
+        throw new IllegalArgumentException("Unknown key type: " + type);
+    }
+  }
+
+  // Zero-padded, so that lexicographic order matches numeric
+  static String pad(long n) {
+    String s = Long.toString(n);
+    return "000000000000".substring(Math.min(12, s.length())) + s;
+  }
+
+  public static KeyCodec codec(String type) {
+    switch (type) {
+      case LONG:
+        return KeyCodec.LONG;
+      case STRING:
+        return KeyCodec.STRING;
+      case TUPLE:
+        return KeyCodec.tuple(KeyCodec.LONG, KeyCodec.STRING);
+      default:
+        throw new IllegalArgumentException("Unknown key type: " + type);
+    }
+  }
+
+  public static KeyHint hint(String type) {
+    switch (type) {
+      case LONG:
+        return KeyHint.LONG;
+      case STRING:
+        return KeyHint.STRING;
+      default:
+        return null;
+    }
+  }
+
+  // key(type, 0), key(type, 2) ... key(type, 2 * (size - 1))
+  public static Object[] present(String type, int size) {
+    Object[] keys = new Object[size];
+    for (int i = 0; i < size; ++i)
+      keys[i] = key(type, 2L * i);
+    return keys;
+  }
+
+  // count random keys, each either present (hit) or absent (odd n)
+  public static Object[] probes(String type, int size, int count, boolean hit, long seed) {
+    Random random = new Random(seed);
+    Object[] keys = new Object[count];
+    for (int i = 0; i < count; ++i) {
+      long n = 2L * random.nextInt(size);
+      keys[i] = key(type, hit ? n : n + 1);
+    }
+    return keys;
+  }
+
+  public static PersistentSortedSet set(String type, int size, Settings settings) {
+    return PersistentSortedSet.fromSorted(present(type, size), size, RT.DEFAULT_COMPARATOR, null, settings);
+  }
+}
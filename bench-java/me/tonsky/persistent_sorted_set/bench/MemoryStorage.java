@@ -0,0 +1,36 @@
+package me.tonsky.persistent_sorted_set.bench;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import me.tonsky.persistent_sorted_set.*;
+
+// Keeps nodes encoded with NodeCodec in memory, every restore() decodes
+// from bytes. So a freshly restored set behaves like a cold cache
+// in front of a fast disk, without measuring actual IO
+@SuppressWarnings("unchecked")
+public class MemoryStorage implements IStorage<Object, Long> {
+  final NodeCodec<Object, Long> _codec;
+  final Map<Long, byte[]> _nodes = new ConcurrentHashMap<>();
+  final AtomicLong _nextAddress = new AtomicLong();
+
+  public MemoryStorage(KeyCodec keyCodec, Settings settings) {
+    _codec = new NodeCodec(keyCodec, KeyCodec.LONG, settings);
+  }
+
+  @Override
+  public ANode<Object, Long> restore(Long address) {
+    return _codec.decode(_nodes.get(address));
+  }
+
+  @Override
+  public Long store(ANode<Object, Long> node) {
+    Long address = _nextAddress.getAndIncrement();
+    _nodes.put(address, _codec.encodeBytes(node));
+    return address;
+  }
+
+  public int size() {
+    return _nodes.size();
+  }
+}
@@ -0,0 +1,183 @@
+package me.tonsky.persistent_sorted_set.bench;
+
+import java.util.*;
+import java.util.concurrent.*;
+import clojure.lang.*;
+import me.tonsky.persistent_sorted_set.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * In-memory operations on PersistentSortedSet, Seq and Chunk, called
+ * directly from Java (no Clojure dispatch). Point operations are measured
+ * both as throughput and as sampled latency, for percentiles.
+ *
+ * Sizes up to 100M work too (-p size=100000000), but need a big heap:
+ * -jvmArgsAppend -Xmx16g
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("unchecked")
+public class SetBench {
+  static final int PROBES = 1 << 12;
+
+  @Param({"32", "512"})
+  public int branchingFactor;
+
+  @Param({Keys.LONG, Keys.STRING, Keys.TUPLE})
+  public String keyType;
+
+  @Param({"1000", "100000", "10000000"})
+  public int size;
+
+  // Only affects conjTransient
+  @Param({"GEOMETRIC"})
+  public Growth growth;
+
+  // KeyHint for long / string keys, tuples have none
+  @Param({"false"})
+  public boolean keyHint;
+
+  PersistentSortedSet set;
+  Object[] hits, misses, appends;
+  Object from, to;
+  // Reused by all calls, that’s the point of it
+  me.tonsky.persistent_sorted_set.Cursor keys;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    set    = Keys.set(keyType, size, new Settings(branchingFactor, 0, null, null, 0, 0, keyHint ? Keys.hint(keyType) : null));
+    hits   = Keys.probes(keyType, size, PROBES, true, 42);
+    misses = Keys.probes(keyType, size, PROBES, false, 43);
+    appends = new Object[PROBES];
+    for (int i = 0; i < PROBES; ++i)
+      appends[i] = Keys.key(keyType, 2L * size + i);
+    from   = Keys.key(keyType, size);
+    to     = Keys.key(keyType, size + 200);
+    keys   = set.cursor();
+  }
+
+  // Cycles through probes so that every call sees a different key
+  @State(Scope.Thread)
+  public static class Cursor {
+    int idx;
+
+    int next() {
+      idx = (idx + 1) & (PROBES - 1);
+      return idx;
+    }
+  }
+
+  @Benchmark
+  public boolean containsHit(Cursor cursor) {
+    return set.contains(hits[cursor.next()]);
+  }
+
+  @Benchmark
+  public boolean containsMiss(Cursor cursor) {
+    return set.contains(misses[cursor.next()]);
+  }
+
+  @Benchmark
+  public PersistentSortedSet conj(Cursor cursor) {
+    return set.cons(misses[cursor.next()]);
+  }
+
+  @Benchmark
+  public PersistentSortedSet disj(Cursor cursor) {
+    return set.disjoin(hits[cursor.next()]);
+  }
+
+  @Benchmark
+  public int indexOf(Cursor cursor) {
+    return set.indexOf(hits[cursor.next()]);
+  }
+
+  // Full scans, time is per whole set
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void iterate(Blackhole bh) {
+    Iterator iter = set.iterator();
+    while (iter.hasNext())
+      bh.consume(iter.next());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void cursor(Blackhole bh) {
+    for (boolean valid = keys.seekToFirst(); valid; valid = keys.next())
+      bh.consume(keys.key());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void seq(Blackhole bh) {
+    for (ISeq seq = set.seq(); seq != null; seq = seq.next())
+      bh.consume(seq.first());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void chunks(Blackhole bh) {
+    for (Seq seq = (Seq) set.seq(); seq != null; seq = seq.chunkedNext()) {
+      IChunk chunk = seq.chunkedFirst();
+      for (int i = 0; i < chunk.count(); ++i)
+        bh.consume(chunk.nth(i));
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public Object reduce() {
+    return set.reduce(new AFn() {
+      public Object invoke(Object acc, Object key) {
+        return acc;
+      }
+    }, null);
+  }
+
+  // 100 keys in the middle of the set
+  @Benchmark
+  public void slice(Blackhole bh) {
+    for (ISeq seq = set.slice(from, to); seq != null; seq = seq.next())
+      bh.consume(seq.first());
+  }
+
+  @Benchmark
+  public void cursorSlice(Blackhole bh) {
+    for (boolean valid = keys.seekTo(from); valid && set.comparator().compare(keys.key(), to) <= 0; valid = keys.next())
+      bh.consume(keys.key());
+  }
+
+  // Ascending keys past the last one, like auto-increment ids or timestamps
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public PersistentSortedSet conjAppend() {
+    PersistentSortedSet s = set;
+    for (int i = 0; i < PROBES; ++i)
+      s = s.cons(appends[i]);
+    return s;
+  }
+
+  // Builds a whole set from scratch with a transient
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public PersistentSortedSet conjTransient() {
+    PersistentSortedSet t = new PersistentSortedSet(null, RT.DEFAULT_COMPARATOR, null, new Settings(branchingFactor, null, growth)).asTransient();
+    for (int i = 0; i < PROBES; ++i)
+      t = t.conj(misses[i]);
+    return t.persistent();
+  }
+}
@@ -0,0 +1,121 @@
+package me.tonsky.persistent_sorted_set.bench;
+
+import java.util.*;
+import java.util.concurrent.*;
+import clojure.lang.*;
+import me.tonsky.persistent_sorted_set.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Storing and restoring sets through IStorage (Branch::store / restore).
+ *
+ * Cold: every operation starts from a freshly restored set, so each node
+ * on the path is decoded from MemoryStorage bytes.
+ * Hot: a restored set that has already been fully walked once, so only
+ * nodes that refType let GC reclaim are restored again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("unchecked")
+public class StorageBench {
+  static final int PROBES = 1 << 12;
+
+  @Param({"32", "512"})
+  public int branchingFactor;
+
+  @Param({Keys.LONG, Keys.STRING, Keys.TUPLE})
+  public String keyType;
+
+  @Param({"1000", "100000", "10000000"})
+  public int size;
+
+  @Param({"STRONG", "SOFT", "WEAK"})
+  public RefType refType;
+
+  Settings settings;
+  MemoryStorage storage;
+  Long address;
+  PersistentSortedSet hot;
+  Object[] hits;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    settings = new Settings(branchingFactor, refType);
+    storage  = new MemoryStorage(Keys.codec(keyType), settings);
+    address  = (Long) Keys.set(keyType, size, settings).store(storage);
+    hot      = restore();
+    // walk once to load every node
+    Iterator iter = hot.iterator();
+    while (iter.hasNext())
+      iter.next();
+    hits = Keys.probes(keyType, size, PROBES, true, 42);
+  }
+
+  PersistentSortedSet restore() {
+    return new PersistentSortedSet(null, RT.DEFAULT_COMPARATOR, address, storage, null, -1, settings, 0);
+  }
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int idx;
+
+    int next() {
+      idx = (idx + 1) & (PROBES - 1);
+      return idx;
+    }
+  }
+
+  // Fresh, not yet stored copy of a set for every store() call
+  @State(Scope.Thread)
+  public static class Unstored {
+    PersistentSortedSet set;
+
+    @Setup(Level.Invocation)
+    public void setup(StorageBench bench) {
+      set = Keys.set(bench.keyType, bench.size, bench.settings);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public Object store(Unstored unstored) {
+    return unstored.set.store(new MemoryStorage(Keys.codec(keyType), settings));
+  }
+
+  // Decodes a single node, the root Branch
+  @Benchmark
+  public ANode restoreRoot() {
+    return storage.restore(address);
+  }
+
+  // Decodes the whole set
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void iterateCold(Blackhole bh) {
+    Iterator iter = restore().iterator();
+    while (iter.hasNext())
+      bh.consume(iter.next());
+  }
+
+  @Benchmark
+  public boolean containsCold(Cursor cursor) {
+    return restore().contains(hits[cursor.next()]);
+  }
+
+  @Benchmark
+  public boolean containsHot(Cursor cursor) {
+    return hot.contains(hits[cursor.next()]);
+  }
+
+  @Benchmark
+  public int countCold() {
+    return restore().count();
+  }
+}
@@ -17,5 +17,13 @@
             :class-dir "target/classes"
             :basis     basis}))
 
+(defn bench-java
+  "Compiles `src-java` and JMH benchmarks from `bench-java` to `target/bench-classes`"
+  [_]
+  (let [basis (b/create-basis {:project "deps.edn" :aliases [:bench-java]})]
+    (b/javac {:src-dirs  ["src-java" "bench-java"]
+              :class-dir "target/bench-classes"
+              :basis     basis})))
+
 (comment
   (java nil))
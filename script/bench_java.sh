@@ -0,0 +1,11 @@
+#!/bin/bash
+set -o errexit -o nounset -o pipefail
+cd "$(dirname "$0")/.."
+
+# Any JMH options can be passed through, e.g.
+#   ./script/bench_java.sh SetBench.contains -p size=1000000 -p keyType=long
+clojure -T:build bench-java
+java -cp "target/bench-classes:$(clojure -Spath -A:bench-java)" org.openjdk.jmh.Main \
+  -prof gc \
+  -rf json -rff target/jmh-result.json \
+  $@
@@ -3,13 +3,14 @@
   me.tonsky.persistent-sorted-set
   (:refer-clojure :exclude [conj disj sorted-set sorted-set-by])
   (:require
+    [clojure.core.reducers :as reducers]
     [me.tonsky.persistent-sorted-set.arrays :as arrays])
   (:import
-    [clojure.lang RT]
+    [clojure.lang IFn RT]
     [java.lang.ref SoftReference]
-    [java.util Comparator Arrays]
+    [java.util Comparator]
     [java.util.function BiConsumer]
-    [me.tonsky.persistent_sorted_set ANode ArrayUtil Branch IStorage Leaf PersistentSortedSet RefType Settings Seq]))
+    [me.tonsky.persistent_sorted_set ArrayUtil ConcurrentSortedSetRef Growth ILongStorage IStorage KeyHint PersistentLongSortedSet PersistentSortedSet RefType Settings Seq]))
 
 (set! *warn-on-reflection* true)
 
@@ -23,6 +24,31 @@
   [^PersistentSortedSet set key ^Comparator cmp]
   (.disjoin set key cmp))
 
+(defn conj-all
+  "Adds all `keys` to set in a single pass over the tree, rewriting each affected node only once.
+   `keys` must be sorted according to set’s comparator (or `cmp`, if provided)."
+  ([^PersistentSortedSet set keys]
+   (.conjAll set keys))
+  ([^PersistentSortedSet set keys ^Comparator cmp]
+   (.conjAll set keys cmp)))
+
+(defn disj-all
+  "Removes all `keys` from set in a single pass over the tree, rewriting each affected node only once.
+   `keys` must be sorted according to set’s comparator (or `cmp`, if provided)."
+  ([^PersistentSortedSet set keys]
+   (.disjAll set keys))
+  ([^PersistentSortedSet set keys ^Comparator cmp]
+   (.disjAll set keys cmp)))
+
+(defn contains-batch
+  "Checks all `keys` in a single pass over the tree, returns vector of booleans, one per key.
+   Costs close to a merge of `keys` with the set instead of a lookup from root for every key.
+   `keys` must be sorted according to set’s comparator (or `cmp`, if provided)."
+  ([^PersistentSortedSet set keys]
+   (vec (.containsBatch set keys)))
+  ([^PersistentSortedSet set keys ^Comparator cmp]
+   (vec (.containsBatch set keys cmp))))
+
 (defn slice
   "An iterator for part of the set with provided boundaries.
    `(slice set from to)` returns iterator for all Xs where from <= X <= to.
@@ -52,77 +78,140 @@
   ([seq to cmp]
    (.seek ^Seq seq to ^Comparator cmp)))
 
-(defn- array-from-indexed [coll type from to]
-  (cond
-    (instance? clojure.lang.Indexed coll)
-    (ArrayUtil/indexedToArray type coll from to)
+(defn index-of
+  "Position of `key` in set (as in `(nth set idx)`) or -1 if it’s not there.
+   Optionally pass in comparator that will override the one that set uses."
+  ([^PersistentSortedSet set key]
+   (.indexOf set key))
+  ([^PersistentSortedSet set key ^Comparator cmp]
+   (.indexOf set key cmp)))
+
+(defn count-slice
+  "Number of Xs where from <= X <= to, same as `(count (slice set from to))`
+   but without walking the slice. `nil` bound means unbounded.
+   O(log n) when subtree counts are known."
+  ([^PersistentSortedSet set from to]
+   (.count set from to))
+  ([^PersistentSortedSet set from to ^Comparator cmp]
+   (.count set from to cmp)))
+
+(defn estimate-count-slice
+  "Cheap approximation of [[count-slice]]: only follows search paths
+   of `from` and `to` until they diverge, never restores nodes beyond that."
+  ([^PersistentSortedSet set from to]
+   (.estimateCount set from to))
+  ([^PersistentSortedSet set from to ^Comparator cmp]
+   (.estimateCount set from to cmp)))
+
+(defn diff
+  "Lazy seq of changes from set `a` to set `b`, in key order: `[key true]` for
+   keys added in `b`, `[key false]` for keys removed. Walks both trees together and
+   skips subtrees they share (same node or same address) without restoring them,
+   so diffing two versions of a set costs O(changes * log n)."
+  [^PersistentSortedSet a ^PersistentSortedSet b]
+  (.diff a b))
 
-    (arrays/array? coll)
-    (Arrays/copyOfRange coll from to (arrays/array-type type))))
+(defn union
+  "Set of keys in either `a` or `b`. Merges both trees by key ranges: subtrees that
+   don’t overlap with the other set are linked into result as is, without being
+   copied (only their leftmost path is restored). Subtrees of `b` are re-packed
+   if `b` has different node sizes. Result uses comparator and settings of `a`."
+  [^PersistentSortedSet a ^PersistentSortedSet b]
+  (.union a b))
 
-(defn- split
-  ([coll to type avg max]
-   (persistent! (split (transient []) 0 coll to type avg max)))
-  ([res from coll to type avg max]
-   (let [len (- to from)]
-     (cond
-       (== 0 len)
-       res
+(defn intersection
+  "Set of keys in both `a` and `b`. Non-overlapping subtrees are skipped whole."
+  [^PersistentSortedSet a ^PersistentSortedSet b]
+  (.intersection a b))
 
-       (>= len (* 2 avg))
-       (recur (conj! res (array-from-indexed coll type from (+ from avg))) (+ from avg) coll to type avg max)
+(defn difference
+  "Set of keys in `a` but not in `b`. Subtrees of `a` that don’t overlap with `b`
+   are linked into result as is."
+  [^PersistentSortedSet a ^PersistentSortedSet b]
+  (.difference a b))
 
-       (<= len max)
-       (conj! res (array-from-indexed coll type from to))
+(defn compress-keys
+  "Returns the same set with in-memory leaves of String keys stored as a shared prefix
+   plus suffixes packed into one String. Cuts heap for long keys with common prefixes.
+   Lookups compare against compressed leaves directly, iteration and updates decode
+   them on the fly. Set must be persistent."
+  [^PersistentSortedSet set]
+  (.compressKeys set))
 
-       :else
-       (-> res
-         (conj! (array-from-indexed coll type from (+ from (quot len 2))))
-         (conj! (array-from-indexed coll type (+ from (quot len 2)) to)))))))
+(defn stats
+  "Shape and estimated heap footprint of the in-memory part of the set, without
+   restoring anything from storage. Per-level vectors are indexed by level, leaves
+   first. `:fill` has 10 buckets of node length / branching factor per level.
+   `:unstored`, `:stored` and `:unloaded` count children of resident branches."
+  [^PersistentSortedSet set]
+  (let [s (.stats set)]
+    {:depth     (.-depth s)
+     :nodes     (vec (.-nodes s))
+     :fill      (mapv vec (.-fill s))
+     :unstored  (.-unstored s)
+     :stored    (.-stored s)
+     :unloaded  (.-unloaded s)
+     :soft-refs (.-softRefs s)
+     :weak-refs (.-weakRefs s)
+     :bytes     (.-bytes s)}))
 
 (defn- map->settings ^Settings [m]
-  (Settings.
-    (int (or (:branching-factor m) 0))
-    (case (:ref-type m)
-      :strong RefType/STRONG
-      :soft   RefType/SOFT
-      :weak   RefType/WEAK
-      nil)))
+  (let [^RefType ref-type (case (:ref-type m)
+                            :strong RefType/STRONG
+                            :soft   RefType/SOFT
+                            :weak   RefType/WEAK
+                            nil)
+        ^Growth growth    (case (:growth m)
+                            :linear    Growth/LINEAR
+                            :geometric Growth/GEOMETRIC
+                            :full      Growth/FULL
+                            nil)
+        ^KeyHint key-hint (case (:key-hint m)
+                            :long   KeyHint/LONG
+                            :string KeyHint/STRING
+                            (:key-hint m))]
+    (Settings.
+      (int (or (:branching-factor m) 0))
+      (int (or (:leaf-branching-factor m) 0))
+      ref-type
+      growth
+      (int (or (:min-branching-factor m) 0))
+      (double (or (:split-ratio m) 0))
+      key-hint)))
 
 (defn- settings->map [^Settings s]
-  {:branching-factor (.branchingFactor s)
-   :ref-type         (condp identical? (.refType s)
-                       RefType/STRONG :strong
-                       RefType/SOFT   :soft
-                       RefType/WEAK   :weak)})
+  {:branching-factor      (.branchingFactor s)
+   :leaf-branching-factor (.leafBranchingFactor s)
+   :ref-type              (condp identical? (.refType s)
+                            RefType/STRONG :strong
+                            RefType/SOFT   :soft
+                            RefType/WEAK   :weak)
+   :growth                (condp identical? (.growth s)
+                            Growth/LINEAR    :linear
+                            Growth/GEOMETRIC :geometric
+                            Growth/FULL      :full)
+   :min-branching-factor  (.minBranchingFactor s)
+   :split-ratio           (.splitRatio s)
+   :key-hint              (condp identical? (.keyHint s)
+                            KeyHint/LONG   :long
+                            KeyHint/STRING :string
+                            (.keyHint s))})
 
 (defn from-sorted-array
-  "Fast path to create a set if you already have a sorted array of elements on your hands."
+  "Fast path to create a set if you already have a sorted array of elements on your hands.
+   Pass `:fill-factor` in opts to control how full nodes are (0.5..1, default 0.75)."
   ([^Comparator cmp keys]
    (from-sorted-array cmp keys (arrays/alength keys) (Settings.)))
   ([^Comparator cmp keys len]
    (from-sorted-array cmp keys len (Settings.)))
   ([^Comparator cmp keys len opts]
-   (let [settings             (map->settings opts)
-         max-branching-factor (.branchingFactor settings)
-         avg-branching-factor (-> (.minBranchingFactor settings) (+ max-branching-factor) (quot 2))
-         storage              (:storage opts)
-         ->Leaf               (fn [keys]
-                                (Leaf. (count keys) keys settings))
-         ->Branch             (fn [level ^objects children]
-                                (Branch.
-                                  level
-                                  (count children)
-                                  ^objects (arrays/amap #(.maxKey ^ANode %) Object children)
-                                  nil
-                                  children
-                                  settings))]
-     (loop [level 1
-            nodes (mapv ->Leaf (split keys len Object avg-branching-factor max-branching-factor))]
-       (case (count nodes)
-         0 (PersistentSortedSet. {} cmp storage settings)
-         1 (PersistentSortedSet. {} cmp nil storage (first nodes) len settings 0)
-         (recur (inc level) (mapv #(->Branch level %) (split nodes (count nodes) Object avg-branching-factor max-branching-factor))))))))
+   (PersistentSortedSet/fromSorted
+     (to-array keys)
+     (int len)
+     cmp
+     ^IStorage (:storage opts)
+     (map->settings opts)
+     (double (:fill-factor opts 0.75)))))
 
 (defn from-sequential
   "Create a set with custom comparator and a collection of keys. Useful when you don’t want to call [[clojure.core/apply]] on [[sorted-set-by]]."
@@ -135,7 +224,17 @@
      (from-sorted-array cmp arr len opts))))
 
 (defn sorted-set*
-  "Create a set with custom comparator, metadata and settings"
+  "Create a set with custom comparator, metadata and settings.
+   `:growth` is how node arrays grow while set is transient: `:linear`, `:geometric`
+   (default) or `:full` (preallocate `:branching-factor`). `persistent!` trims them.
+   `:min-branching-factor` is when nodes get merged on remove (1..bf/2, default bf/2,
+   1 = only when empty), `:split-ratio` is how much a full node keeps when split
+   on insert (default 0.5). Lower merge threshold means fewer rebalances and fewer
+   dirty nodes to store. `:leaf-branching-factor` sets leaf size separately, then
+   `:branching-factor` is only for branches (e.g. leaves sized to storage page,
+   branches to a few cache lines). `:key-hint` (`:long`, `:string` or a `KeyHint`)
+   makes branches search a packed array of `long` prefixes of keys first, and call
+   comparator only on ties."
   [opts]
   (PersistentSortedSet.
     (:meta opts)
@@ -153,6 +252,33 @@
   ([] (PersistentSortedSet/EMPTY))
   ([& keys] (from-sequential compare keys)))
 
+(defn long-sorted-set*
+  "Create a set of primitive longs with metadata and settings.
+   Keys are always in natural order, `:cmp` is not supported.
+   `:storage` must implement ILongStorage"
+  [opts]
+  (PersistentLongSortedSet.
+    (:meta opts)
+    ^ILongStorage (:storage opts)
+    (map->settings opts)))
+
+(defn long-sorted-set
+  "Create a set of longs, stored unboxed in long[] nodes."
+  ([] (PersistentLongSortedSet/EMPTY))
+  ([& keys] (persistent! (reduce conj! (transient (PersistentLongSortedSet/EMPTY)) keys))))
+
+(defn concurrent-ref
+  "Mutable reference to a set for many concurrent writers. `.add` / `.remove`
+   from different threads are combined into batches applied via a single transient,
+   `deref` returns current immutable snapshot without blocking.
+
+   Options:
+   - `:max-batch` — max operations applied at once, 4096 by default"
+  (^ConcurrentSortedSetRef [set]
+   (ConcurrentSortedSetRef. set))
+  (^ConcurrentSortedSetRef [set opts]
+   (ConcurrentSortedSetRef. set (int (:max-batch opts 4096)))))
+
 (defn restore-by
   "Constructs lazily-loaded set from storage, root address and custom comparator.
    Supports all operations that normal in-memory impl would,
@@ -178,13 +304,23 @@
   (.walkAddresses set consume-fn))
 
 (defn store
-  "Store each not-yet-stored node by calling IStorage::store and remembering
-   returned address. Incremental, won’t store same node twice on subsequent calls.
-   Returns root address. Remember it and use it for restore"
+  "Store each not-yet-stored node by calling IStorage::storeAll (once per level,
+   leaves first) and remembering returned addresses. Incremental, won’t store same
+   node twice on subsequent calls. Returns root address. Remember it and use it for restore.
+
+   Options:
+   - `:executor` — java.util.concurrent.Executor to store subtrees of root in parallel"
   ([^PersistentSortedSet set]
    (.store set))
   ([^PersistentSortedSet set ^IStorage storage]
-   (.store set storage)))
+   (.store set storage))
+  ([^PersistentSortedSet set ^IStorage storage opts]
+   (.store set storage ^java.util.concurrent.Executor (:executor opts))))
 
 (defn settings [^PersistentSortedSet set]
   (settings->map (.-_settings set)))
+
+(extend-protocol reducers/CollFold
+  PersistentSortedSet
+  (coll-fold [set n combinef reducef]
+    (.fold set (long n) ^IFn combinef ^IFn reducef)))
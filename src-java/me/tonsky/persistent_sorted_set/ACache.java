@@ -0,0 +1,46 @@
+package me.tonsky.persistent_sorted_set;
+
+/**
+ * Weight-bounded cache used by CachingStorage, one per segment.
+ * Not thread-safe, CachingStorage locks segment around each call.
+ */
+public abstract class ACache {
+  public final long _capacity;
+  public long _weight;
+
+  public ACache(long capacity) {
+    _capacity = capacity;
+  }
+
+  /**
+   * Value or null. Counts as access.
+   */
+  public abstract Object get(Object key);
+
+  /**
+   * Insert or replace. Returns number of evicted entries.
+   */
+  public abstract int put(Object key, Object value, long weight);
+
+  public abstract void remove(Object key);
+
+  public abstract int size();
+
+  public abstract void clear();
+
+  public long weight() {
+    return _weight;
+  }
+
+  static class Entry {
+    final Object key;
+    Object value;
+    long weight;
+
+    Entry(Object key, Object value, long weight) {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+import clojure.lang.*;
+
+// Same as ANode, but with primitive long keys in natural order
+@SuppressWarnings("unchecked")
+public abstract class ALongNode<Address> {
+  // >= 0
+  public int _len;
+
+  // Only valid [0 ... _len-1]
+  public final long[] _keys;
+
+  public final Settings _settings;
+
+  public ALongNode(int len, long[] keys, Settings settings) {
+    assert keys.length >= len;
+
+    _len      = len;
+    _keys     = keys;
+    _settings = settings;
+  }
+
+  public int len() {
+    return _len;
+  }
+
+  public long minKey() {
+    return _keys[0];
+  }
+
+  public long maxKey() {
+    return _keys[_len - 1];
+  }
+
+  // Same as ANode::trim
+  public ALongNode<Address> trim(Settings settings) {
+    return this;
+  }
+
+  public long[] keys() {
+    return Arrays.copyOfRange(_keys, 0, _len);
+  }
+
+  public boolean editable() {
+    return _settings.editable();
+  }
+
+  public int search(long key) {
+    return Arrays.binarySearch(_keys, 0, _len, key);
+  }
+
+  // First idx with _keys[idx] >= key
+  public int searchFirst(long key) {
+    int low = 0, high = _len;
+    while (low < high) {
+      int mid = (high + low) >>> 1;
+      if (_keys[mid] < key)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  // Last idx with _keys[idx] <= key
+  public int searchLast(long key) {
+    int low = 0, high = _len;
+    while (low < high) {
+      int mid = (high + low) >>> 1;
+      if (_keys[mid] <= key)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low - 1;
+  }
+
+  public abstract int count(ILongStorage storage);
+  // 0 for leaves, 1+ for branches
+  public abstract int level();
+  public abstract boolean contains(ILongStorage storage, long key);
+  public abstract ALongNode[] add(ILongStorage storage, long key, Settings settings);
+  public abstract ALongNode[] remove(ILongStorage storage, long key, ALongNode left, ALongNode right, Settings settings);
+  public abstract void walkAddresses(ILongStorage storage, IFn onAddress);
+  public abstract Address store(ILongStorage<Address> storage);
+  public abstract String str(ILongStorage storage, int lvl);
+
+  protected static int newLen(int level, int len, Settings settings) {
+    return ANode.newLen(level, len, settings);
+  }
+}
@@ -47,6 +47,17 @@ public abstract class ANode<Key, Address> {
     return _settings.editable();
   }
 
+  // Node with arrays cut to _len if it was created by transient with
+  // settings, this otherwise. Called by persistent()
+  public ANode<Key, Address> trim(Settings settings) {
+    return this;
+  }
+
+  // Makes sure _keys are populated, see LazyLeaf
+  public ANode<Key, Address> materialize() {
+    return this;
+  }
+
   public int search(Key key, Comparator<Key> cmp) {
     return Arrays.binarySearch(_keys, 0, _len, key, cmp);
 
@@ -70,7 +81,12 @@ public abstract class ANode<Key, Address> {
   }
 
   public int searchFirst(Key key, Comparator<Key> cmp) {
-    int low = 0, high = _len;
+    return searchFirst(key, cmp, 0, _len);
+  }
+
+  // Same, but only looks at [low ... high), everything before low
+  // is known to be < key and everything from high on > key
+  protected int searchFirst(Key key, Comparator<Key> cmp, int low, int high) {
     while (low < high) {
       int mid = (high + low) >>> 1;
       int d = cmp.compare(_keys[mid], key);
@@ -83,7 +99,11 @@ public abstract class ANode<Key, Address> {
   }
 
   public int searchLast(Key key, Comparator<Key> cmp) {
-    int low = 0, high = _len;
+    return searchLast(key, cmp, 0, _len);
+  }
+
+  // Same as searchFirst(key, cmp, low, high)
+  protected int searchLast(Key key, Comparator<Key> cmp, int low, int high) {
     while (low < high) {
       int mid = (high + low) >>> 1;
       int d = cmp.compare(_keys[mid], key);
@@ -95,6 +115,36 @@ public abstract class ANode<Key, Address> {
     return low - 1;
   }
 
+  public Key key(int idx) {
+    return _keys[idx];
+  }
+
+  // Same result as search, but looks only at [from ... _len) and probes
+  // from, from+1, from+3, from+7... before binary search. Cheap when key
+  // is close to from, e.g. when walking sorted batch of keys
+  public int gallop(Key key, int from, Comparator<Key> cmp) {
+    int low = from, high = _len, step = 1;
+    while (low < high) {
+      int probe = Math.min(low + step - 1, high - 1);
+      int d = cmp.compare(key(probe), key);
+      if (d == 0) return probe;
+      if (d > 0) {
+        high = probe;
+        break;
+      }
+      low = probe + 1;
+      step <<= 1;
+    }
+    while (low < high) {
+      int mid = (high + low) >>> 1;
+      int d = cmp.compare(key(mid), key);
+      if (d == 0) return mid;
+      else if (d < 0) low = mid + 1;
+      else high = mid;
+    }
+    return -low - 1;
+  }
+
   public static <Key, Address> ANode restore(int level, List<Key> keys, List<Address> addresses, Settings settings) {
     if (level == 0 || addresses == null) {
       return new Leaf(keys, settings);
@@ -103,6 +153,14 @@ public abstract class ANode<Key, Address> {
     }
   }
 
+  public static <Key, Address> ANode restore(int level, List<Key> keys, List<Address> addresses, List<? extends Number> counts, Settings settings) {
+    if (level == 0 || addresses == null) {
+      return new Leaf(keys, settings);
+    } else {
+      return new Branch(level, keys, addresses, counts, settings);
+    }
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -114,16 +172,24 @@ public abstract class ANode<Key, Address> {
   // 0 for Leafs, 1+ for Branches
   public abstract int level();
   public abstract boolean contains(IStorage storage, Key key, Comparator<Key> cmp);
+  // keys[from ... to-1] are sorted. Sets res[i] for every keys[i] found
+  public abstract void containsAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, boolean[] res);
   public abstract ANode[] add(IStorage storage, Key key, Comparator<Key> cmp, Settings settings);
+  // Same as add, for key greater than maxKey()
+  public abstract ANode[] append(IStorage storage, Key key, Comparator<Key> cmp, Settings settings);
   public abstract ANode[] remove(IStorage storage, Key key, ANode left, ANode right, Comparator<Key> cmp, Settings settings);
+  // keys[from ... to-1] are sorted and distinct. Might return underfilled nodes.
+  // Adds change in number of keys to delta[0]
+  public abstract ANode[] addAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, Settings settings, int[] delta);
+  public abstract ANode[] removeAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, Settings settings, int[] delta);
   public abstract String str(IStorage storage, int lvl);
   public abstract void walkAddresses(IStorage storage, IFn onAddress);
   public abstract Address store(IStorage<Key, Address> storage);
   public abstract void toString(StringBuilder sb, Address address, String indent);
 
-  protected static int newLen(int len, Settings settings) {
+  protected static int newLen(int level, int len, Settings settings) {
     if (settings.editable())
-        return Math.min(settings.branchingFactor(), len + settings.expandLen());
+        return settings.transientLen(level, len);
     else
         return len;
   }
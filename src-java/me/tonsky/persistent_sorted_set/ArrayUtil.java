@@ -18,6 +18,33 @@ public class ArrayUtil {
     return ret;
   }
 
+  // First idx in [from ... to) such that arr[idx] > key, or to
+  public static <T> int upperBound(T[] arr, int from, int to, T key, Comparator<T> cmp) {
+    int low = from, high = to;
+    while (low < high) {
+      int mid = (high + low) >>> 1;
+      if (cmp.compare(arr[mid], key) <= 0)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  // Same as upperBound, but probes from, from+1, from+3, from+7... first.
+  // Cheap when result is close to from
+  public static <T> int gallopUpperBound(T[] arr, int from, int to, T key, Comparator<T> cmp) {
+    int low = from, step = 1;
+    while (low < to) {
+      int probe = Math.min(low + step - 1, to - 1);
+      if (cmp.compare(arr[probe], key) > 0)
+        return upperBound(arr, low, probe, key, cmp);
+      low = probe + 1;
+      step <<= 1;
+    }
+    return to;
+  }
+
   public static int distinct(Comparator<Object> cmp, Object[] arr) {
     int to = 0;
     for (int idx = 1; idx < arr.length; ++idx) {
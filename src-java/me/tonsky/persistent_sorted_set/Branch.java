@@ -19,34 +19,126 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
   // Object == ANode | SoftReference<ANode> | WeakReference<ANode>
   public Object[] _children;
 
+  // Nullable, null == subtree sizes not known yet
+  // Only valid [0 ... _len-1]
+  // 0 == size of that subtree not known yet (children are never empty)
+  public int[] _counts;
+
+  // Nullable, null == not built yet
+  // KeyHint::hint of [0 ... _len-1], built on first search once node is not
+  // editable, so _keys can’t change under it. Persistent nodes are shared
+  // between threads: volatile write after array is filled publishes it
+  public volatile long[] _hints;
+
   // For i in [0.._len):
   // 
   // 1. Not stored:       (_addresses == null || _addresses[i] == null) && _children[i] == ANode
   // 2. Stored:            _addresses[i] == Object && _children[i] == WeakReference<ANode>
   // 3. Not restored yet:  _addresses[i] == Object && (_children == null || _children[i] == null)
 
-  public Branch(int level, int len, Key[] keys, Address[] addresses, Object[] children, Settings settings) {
+  public Branch(int level, int len, Key[] keys, Address[] addresses, int[] counts, Object[] children, Settings settings) {
     super(len, keys, settings);
     assert level >= 1;
     assert addresses == null || addresses.length >= len : ("addresses = " + Arrays.toString(addresses) + ", len = " + len);
+    assert counts == null || counts.length >= len;
     assert children == null || children.length >= len;
 
     _level     = level;
     _addresses = addresses;
+    _counts    = counts;
     _children  = children;
   }
 
+  public Branch(int level, int len, Key[] keys, Address[] addresses, Object[] children, Settings settings) {
+    this(level, len, keys, addresses, null, children, settings);
+  }
+
   public Branch(int level, int len, Settings settings) {
-    super(len, (Key[]) new Object[ANode.newLen(len, settings)], settings);
+    super(len, (Key[]) new Object[ANode.newLen(level, len, settings)], settings);
     assert level >= 1;
 
     _level     = level;
     _addresses = null;
+    _counts    = null;
     _children  = null;
   }
 
   public Branch(int level, List<Key> keys, List<Address> addresses, Settings settings) {
-    this(level, keys.size(), (Key[]) keys.toArray(), (Address[]) addresses.toArray(), null, settings);
+    this(level, keys.size(), (Key[]) keys.toArray(), (Address[]) addresses.toArray(), null, null, settings);
+  }
+
+  public Branch(int level, List<Key> keys, List<Address> addresses, List<? extends Number> counts, Settings settings) {
+    this(level, keys.size(), (Key[]) keys.toArray(), (Address[]) addresses.toArray(), toCounts(counts), null, settings);
+  }
+
+  protected static int[] toCounts(List<? extends Number> counts) {
+    if (counts == null) {
+      return null;
+    }
+    int[] res = new int[counts.size()];
+    for (int i = 0; i < res.length; ++i) {
+      Number count = counts.get(i);
+      res[i] = count == null ? 0 : count.intValue();
+    }
+    return res;
+  }
+
+  // Hints to search with cmp, or null if there’s no KeyHint for it
+  protected long[] hints(Comparator<Key> cmp) {
+    long[] hints = _hints;
+    if (hints != null)
+      return _settings._keyHint.orders(cmp) ? hints : null;
+    KeyHint keyHint = _settings._keyHint;
+    if (keyHint == null || editable() || !keyHint.orders(cmp))
+      return null;
+    hints = new long[_len];
+    for (int i = 0; i < _len; ++i)
+      hints[i] = keyHint.hint(_keys[i]);
+    _hints = hints;
+    return hints;
+  }
+
+  // First idx with hints[idx] > hint, or >= hint if !after
+  protected int searchHint(long[] hints, long hint, boolean after) {
+    int low = 0, high = _len;
+    while (low < high) {
+      int mid = (high + low) >>> 1;
+      if (hints[mid] < hint || (after && hints[mid] == hint))
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  // Searches below narrow down range by hints first, only keys with the
+  // same hint as key are compared with cmp
+
+  @Override
+  public int search(Key key, Comparator<Key> cmp) {
+    long[] hints = hints(cmp);
+    if (hints == null)
+      return super.search(key, cmp);
+    long hint = _settings._keyHint.hint(key);
+    return Arrays.binarySearch(_keys, searchHint(hints, hint, false), searchHint(hints, hint, true), key, cmp);
+  }
+
+  @Override
+  public int searchFirst(Key key, Comparator<Key> cmp) {
+    long[] hints = hints(cmp);
+    if (hints == null)
+      return super.searchFirst(key, cmp);
+    long hint = _settings._keyHint.hint(key);
+    return searchFirst(key, cmp, searchHint(hints, hint, false), searchHint(hints, hint, true));
+  }
+
+  @Override
+  public int searchLast(Key key, Comparator<Key> cmp) {
+    long[] hints = hints(cmp);
+    if (hints == null)
+      return super.searchLast(key, cmp);
+    long hint = _settings._keyHint.hint(key);
+    return searchLast(key, cmp, searchHint(hints, hint, false), searchHint(hints, hint, true));
   }
 
   protected Address[] ensureAddresses() {
@@ -66,6 +158,48 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
     }
   }
   
+  protected int[] ensureCounts() {
+    if (_counts == null) {
+      _counts = new int[_keys.length];
+    }
+    return _counts;
+  }
+
+  // null for subtrees whose size is not known yet
+  public List<Integer> counts() {
+    Integer[] res = new Integer[_len];
+    if (_counts != null) {
+      for (int i = 0; i < _len; ++i) {
+        res[i] = _counts[i] > 0 ? _counts[i] : null;
+      }
+    }
+    return Arrays.asList(res);
+  }
+
+  // 0 if not known yet
+  protected int cachedCount(int idx) {
+    return _counts == null ? 0 : _counts[idx];
+  }
+
+  // Number of keys in idx-th subtree. Only restores child if size wasn’t known
+  public int count(IStorage storage, int idx) {
+    assert 0 <= idx && idx < _len;
+
+    int count = cachedCount(idx);
+    if (count <= 0) {
+      count = lazyChild(storage, idx).count(storage);
+      ensureCounts()[idx] = count;
+    }
+    return count;
+  }
+
+  // Subtree at idx gained or lost keys in place
+  protected void adjustCount(int idx, int delta) {
+    if (_counts != null && _counts[idx] > 0) {
+      _counts[idx] += delta;
+    }
+  }
+
   public Address address(int idx) {
     assert 0 <= idx && idx < _len;
 
@@ -91,7 +225,26 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
     return address;
   }
 
+  // Addresses of children in [from ... to) that are stored but not in memory
+  public List<Address> lazyAddresses(int from, int to) {
+    ArrayList<Address> res = new ArrayList<>();
+    if (_addresses == null) {
+      return res;
+    }
+    for (int i = from; i < to; ++i) {
+      if (_addresses[i] != null && (_children == null || _settings.readReference(_children[i]) == null)) {
+        res.add(_addresses[i]);
+      }
+    }
+    return res;
+  }
+
   public ANode<Key, Address> child(IStorage storage, int idx) {
+    return lazyChild(storage, idx).materialize();
+  }
+
+  // Child might not have _keys populated yet, only use for lookups
+  public ANode<Key, Address> lazyChild(IStorage storage, int idx) {
     assert 0 <= idx && idx < _len;
     assert (_children != null && _children[idx] != null) || (_addresses != null && _addresses[idx] != null);
 
@@ -126,7 +279,7 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
   public int count(IStorage storage) {
     int count = 0;
     for (int i = 0; i < _len; ++i) {
-      count += child(storage, i).count(storage);
+      count += count(storage, i);
     }
     return count;
   }
@@ -135,6 +288,38 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
     return _level;
   }
 
+  // Only children not stored yet can be transient nodes
+  @Override
+  public ANode<Key, Address> trim(Settings settings) {
+    if (_settings != settings)
+      return this;
+    if (_children != null) {
+      for (int i = 0; i < _len; ++i) {
+        if (_children[i] instanceof ANode && address(i) == null)
+          _children[i] = ((ANode) _children[i]).trim(settings);
+      }
+    }
+    if (_keys.length == _len
+        && (_addresses == null || _addresses.length == _len)
+        && (_counts == null || _counts.length == _len)
+        && (_children == null || _children.length == _len))
+      return this;
+    return new Branch(_level, _len,
+      Arrays.copyOfRange(_keys, 0, _len),
+      _addresses == null ? null : Arrays.copyOfRange(_addresses, 0, _len),
+      _counts == null ? null : Arrays.copyOfRange(_counts, 0, _len),
+      _children == null ? null : Arrays.copyOfRange(_children, 0, _len),
+      settings);
+  }
+
+  // Whether all arrays can take one more child without reallocation
+  boolean hasRoom() {
+    return _len < _keys.length
+      && (_addresses == null || _len < _addresses.length)
+      && (_counts == null || _len < _counts.length)
+      && (_children == null || _len < _children.length);
+  }
+
   protected Object[] ensureChildren() {
     if (_children == null) {
       _children = new Object[_keys.length];
@@ -149,7 +334,22 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
     int ins = -idx - 1; 
     if (ins == _len) return false;
     assert 0 <= ins && ins < _len;
-    return child(storage, ins).contains(storage, key, cmp);
+    return lazyChild(storage, ins).contains(storage, key, cmp);
+  }
+
+  // Each child is visited at most once, with all keys that fall into it
+  @Override
+  public void containsAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, boolean[] res) {
+    int pos = 0;
+    while (from < to) {
+      int idx = gallop(keys[from], pos, cmp);
+      int ins = idx >= 0 ? idx : -idx - 1;
+      if (ins == _len) return; // rest are after maxKey
+      int end = ArrayUtil.gallopUpperBound(keys, from + 1, to, _keys[ins], cmp);
+      lazyChild(storage, ins).containsAll(storage, keys, from, end, cmp, res);
+      from = end;
+      pos = ins + 1;
+    }
   }
 
   @Override
@@ -163,12 +363,96 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
     if (ins == _len) ins = _len - 1;
     assert 0 <= ins && ins < _len;
     ANode[] nodes = child(storage, ins).add(storage, key, cmp, settings);
+    return added(storage, ins, nodes, cmp, settings);
+  }
+
+  // Goes down the right edge without searching. Full nodes split 100/0 instead of 50/50,
+  // so ascending inserts pack the tree. New branch takes last child of the old one along,
+  // so that every node still has a sibling to merge with on remove
+  @Override
+  public ANode[] append(IStorage storage, Key key, Comparator<Key> cmp, Settings settings) {
+    int ins = _len - 1;
+    ANode[] nodes = child(storage, ins).append(storage, key, cmp, settings);
+    if (1 == nodes.length)
+      return added(storage, ins, nodes, cmp, settings);
+
+    // child split: nodes[0] is what’s left of it (same leaf, or branch without
+    // its last child), nodes[1] is new subtree with key
+    boolean same     = _level == 1;
+    Key     key0     = (Key) nodes[0].maxKey();
+    Address address0 = same ? address(ins) : null;
+    int     count0   = same ? cachedCount(ins) : nodes[0].count(storage);
+    Object  child0   = same && _children != null ? _children[ins] : nodes[0];
+    ANode   node     = nodes[1];
+    int     count1   = node.count(storage);
+
+    // full, split
+    if (_len >= _settings.branchingFactor()) {
+      Branch right = new Branch(_level, 2, settings);
+      right._keys[0] = key0;
+      right._keys[1] = node.maxKey();
+      if (address0 != null)
+        right.ensureAddresses()[0] = address0;
+      right.ensureCounts()[0] = count0;
+      right._counts[1] = count1;
+      right.ensureChildren()[0] = child0;
+      right._children[1] = node;
+
+      if (editable()) {
+        _len = ins;
+        _keys[ins] = null;
+        if (_addresses != null) _addresses[ins] = null;
+        if (_counts != null)    _counts[ins] = 0;
+        if (_children != null) _children[ins] = null;
+        return new ANode[]{ this, right };
+      }
+
+      Branch left = new Branch(_level, ins, settings);
+      ArrayUtil.copy(_keys, 0, ins, left._keys, 0);
+      if (_addresses != null)
+        ArrayUtil.copy(_addresses, 0, ins, left.ensureAddresses(), 0);
+      if (_counts != null)
+        System.arraycopy(_counts, 0, left.ensureCounts(), 0, ins);
+      if (_children != null)
+        ArrayUtil.copy(_children, 0, ins, left.ensureChildren(), 0);
+      return new ANode[]{ left, right };
+    }
+
+    Branch n = editable() && hasRoom() ? this : new Branch(_level, _len + 1, settings);
+    if (n != this) {
+      ArrayUtil.copy(_keys, 0, ins, n._keys, 0);
+      if (_addresses != null)
+        ArrayUtil.copy(_addresses, 0, ins, n.ensureAddresses(), 0);
+      if (_counts != null)
+        System.arraycopy(_counts, 0, n.ensureCounts(), 0, ins);
+      n.ensureChildren();
+      if (_children != null)
+        ArrayUtil.copy(_children, 0, ins, n._children, 0);
+    }
+    n._keys[ins]     = key0;
+    n._keys[ins + 1] = node.maxKey();
+    if (n._addresses != null) {
+      n._addresses[ins]     = address0;
+      n._addresses[ins + 1] = null;
+    }
+    if (n._counts != null) {
+      n._counts[ins]     = count0;
+      n._counts[ins + 1] = count1;
+    }
+    n.ensureChildren()[ins] = child0;
+    n._children[ins + 1]    = node;
+    n._len = _len + 1;
+    return new ANode[]{ n }; // update maxKey
+  }
 
+  // Updates this after child at ins returned nodes from add
+  ANode[] added(IStorage storage, int ins, ANode[] nodes, Comparator<Key> cmp, Settings settings) {
     if (PersistentSortedSet.UNCHANGED == nodes) { // child signalling already in set
       return PersistentSortedSet.UNCHANGED;
     }
 
     if (PersistentSortedSet.EARLY_EXIT == nodes) { // child signalling nothing to update
+      adjustCount(ins, 1);
       return PersistentSortedSet.EARLY_EXIT;
     }
     
@@ -177,6 +461,7 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
       ANode<Key, Address> node = nodes[0];
       _keys[ins] = node.maxKey();
       child(ins, node);
+      adjustCount(ins, 1);
       if (ins == _len - 1 && node.maxKey() == maxKey()) // TODO why maxKey check?
         return new ANode[]{ this }; // update maxKey
       else
@@ -186,17 +471,25 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
     // same len, not editable
     if (1 == nodes.length) {
       ANode<Key, Address> node = nodes[0];
+      // arrays can only be shared with a node that won’t be edited in place
+      boolean share = !settings.editable();
       Key[] newKeys;
-      if (0 == cmp.compare(node.maxKey(), _keys[ins])) {
+      if (share && 0 == cmp.compare(node.maxKey(), _keys[ins])) {
         newKeys = _keys;
       } else {
         newKeys = Arrays.copyOfRange(_keys, 0, _len);
         newKeys[ins] = node.maxKey();
       }
 
+      int[] newCounts = null;
+      if (_counts != null) {
+        newCounts = Arrays.copyOfRange(_counts, 0, _len);
+        if (newCounts[ins] > 0) newCounts[ins] += 1;
+      }
+
       Address[] newAddresses = null;
       Object[] newChildren = null;
-      if (node == child(storage, ins)) { // TODO how is this possible?
+      if (share && node == child(storage, ins)) { // TODO how is this possible?
         newAddresses = _addresses;
         newChildren = _children;
       } else {
@@ -209,7 +502,37 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
         newChildren[ins] = node;
       }
 
-      return new ANode[]{ new Branch(_level, _len, newKeys, newAddresses, newChildren, settings) };
+      return new ANode[]{ new Branch(_level, _len, newKeys, newAddresses, newCounts, newChildren, settings) };
+    }
+
+    // len + 1, editable, room left in arrays
+    if (editable() && hasRoom()) {
+      ArrayUtil.copy(_keys, ins + 1, _len, _keys, ins + 2);
+      _keys[ins]     = (Key) nodes[0].maxKey();
+      _keys[ins + 1] = (Key) nodes[1].maxKey();
+
+      if (_addresses != null) {
+        ArrayUtil.copy(_addresses, ins + 1, _len, _addresses, ins + 2);
+        _addresses[ins]     = null;
+        _addresses[ins + 1] = null;
+      }
+
+      if (_counts != null) {
+        System.arraycopy(_counts, ins + 1, _counts, ins + 2, _len - ins - 1);
+        _counts[ins]     = 0;
+        _counts[ins + 1] = 0;
+      }
+
+      ensureChildren();
+      ArrayUtil.copy(_children, ins + 1, _len, _children, ins + 2);
+      _children[ins]     = nodes[0];
+      _children[ins + 1] = nodes[1];
+
+      _len += 1;
+      if (ins + 2 == _len)
+        return new ANode[]{ this }; // update maxKey
+      else
+        return PersistentSortedSet.EARLY_EXIT;
     }
 
     // len + 1
@@ -230,6 +553,15 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
           .copyAll(_addresses, ins + 1, _len);
       }
 
+      if (_counts != null) {
+        n.ensureCounts();
+        new Stitch(n._counts, 0)
+          .copyAll(_counts, 0, ins)
+          .copyOne(0)
+          .copyOne(0)
+          .copyAll(_counts, ins + 1, _len);
+      }
+
       n.ensureChildren();
       new Stitch(n._children, 0)
         .copyAll(_children, 0, ins)
@@ -241,35 +573,53 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
     }
 
     // split
-    int half1 = (_len + 1) >>> 1;
-    if (ins+1 == half1) ++half1;
+    // both new children go to the same half
+    int half1 = _settings.splitLen(_level, _len + 1);
+    if (ins + 1 == half1)
+      half1 += half1 < _len + 1 - _settings.minLen(_level) ? 1 : -1;
     int half2 = _len + 1 - half1;
+    // room to grow in place if transient
+    int cap1 = newLen(_level, half1, settings),
+        cap2 = newLen(_level, half2, settings);
 
     // add to first half
     if (ins < half1) {
-      Key[] keys1 = (Key[]) new Object[half1];
+      Key[] keys1 = (Key[]) new Object[cap1];
       new Stitch(keys1, 0)
         .copyAll(_keys, 0, ins)
         .copyOne(nodes[0].maxKey())
         .copyOne(nodes[1].maxKey())
         .copyAll(_keys, ins+1, half1-1);
-      Key[] keys2 = (Key[]) new Object[half2];
+      Key[] keys2 = (Key[]) new Object[cap2];
       ArrayUtil.copy(_keys, half1 - 1, _len, keys2, 0);
 
       Address[] addresses1 = null;
       Address[] addresses2 = null;
       if (_addresses != null) {
-        addresses1 = (Address[]) new Object[half1];
+        addresses1 = (Address[]) new Object[cap1];
         new Stitch(addresses1, 0)
           .copyAll(_addresses, 0, ins)
           .copyOne(null)
           .copyOne(null)
           .copyAll(_addresses, ins + 1, half1 - 1);
-        addresses2 = (Address[]) new Object[half2];
+        addresses2 = (Address[]) new Object[cap2];
         ArrayUtil.copy(_addresses, half1 - 1, _len, addresses2, 0);
       }
 
-      Object[] children1 = new Object[half1];
+      int[] counts1 = null;
+      int[] counts2 = null;
+      if (_counts != null) {
+        counts1 = new int[cap1];
+        new Stitch(counts1, 0)
+          .copyAll(_counts, 0, ins)
+          .copyOne(0)
+          .copyOne(0)
+          .copyAll(_counts, ins + 1, half1 - 1);
+        counts2 = new int[cap2];
+        System.arraycopy(_counts, half1 - 1, counts2, 0, half2);
+      }
+
+      Object[] children1 = new Object[cap1];
       Object[] children2 = null;
       new Stitch(children1, 0)
         .copyAll(_children, 0, ins)
@@ -277,19 +627,19 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
         .copyOne(nodes[1])
         .copyAll(_children, ins + 1, half1 - 1);
       if (_children != null) {
-        children2 = new Object[half2];
+        children2 = new Object[cap2];
         ArrayUtil.copy(_children, half1 - 1, _len, children2, 0);
       }
 
       return new ANode[] {
-        new Branch(_level, half1, keys1, addresses1, children1, settings),
-        new Branch(_level, half2, keys2, addresses2, children2, settings)
+        new Branch(_level, half1, keys1, addresses1, counts1, children1, settings),
+        new Branch(_level, half2, keys2, addresses2, counts2, children2, settings)
       };
     }
 
     // add to second half
-    Key[] keys1 = (Key[]) new Object[half1];
-    Key[] keys2 = (Key[]) new Object[half2];
+    Key[] keys1 = (Key[]) new Object[cap1];
+    Key[] keys2 = (Key[]) new Object[cap2];
     ArrayUtil.copy(_keys, 0, half1, keys1, 0);
 
     new Stitch(keys2, 0)
@@ -301,9 +651,9 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
     Address addresses1[] = null;
     Address addresses2[] = null;
     if (_addresses != null) {
-      addresses1 = (Address[]) new Object[half1];
+      addresses1 = (Address[]) new Object[cap1];
       ArrayUtil.copy(_addresses, 0, half1, addresses1, 0);
-      addresses2 = (Address[]) new Object[half2];
+      addresses2 = (Address[]) new Object[cap2];
       new Stitch(addresses2, 0)
         .copyAll(_addresses, half1, ins)
         .copyOne(null)
@@ -311,10 +661,23 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
         .copyAll(_addresses, ins + 1, _len);
     }
 
+    int[] counts1 = null;
+    int[] counts2 = null;
+    if (_counts != null) {
+      counts1 = new int[cap1];
+      System.arraycopy(_counts, 0, counts1, 0, half1);
+      counts2 = new int[cap2];
+      new Stitch(counts2, 0)
+        .copyAll(_counts, half1, ins)
+        .copyOne(0)
+        .copyOne(0)
+        .copyAll(_counts, ins + 1, _len);
+    }
+
     Object[] children1 = null;
-    Object[] children2 = new Object[half2];
+    Object[] children2 = new Object[cap2];
     if (_children != null) {
-      children1 = new Object[half1];
+      children1 = new Object[cap1];
       ArrayUtil.copy(_children, 0, half1, children1, 0);
     }
     new Stitch(children2, 0)
@@ -324,8 +687,8 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
       .copyAll(_children, ins + 1, _len);
 
     return new ANode[]{
-      new Branch(_level, half1, keys1, addresses1, children1, settings),
-      new Branch(_level, half2, keys2, addresses2, children2, settings)
+      new Branch(_level, half1, keys1, addresses1, counts1, children1, settings),
+      new Branch(_level, half2, keys2, addresses2, counts2, children2, settings)
     };
   }
 
@@ -352,9 +715,12 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
       return PersistentSortedSet.UNCHANGED;
 
     if (PersistentSortedSet.EARLY_EXIT == nodes) { // child signalling nothing to update
+      adjustCount(idx, -1);
       return PersistentSortedSet.EARLY_EXIT;
     }
 
+    // unchanged neighbours keep their slot in _children as is (reference,
+    // compressed or lazy leaf), not the materialized node child() returned
     boolean leftChanged = leftChild != nodes[0] || leftChildLen != safeLen(nodes[0]);
     boolean rightChanged = rightChild != nodes[2] || rightChildLen != safeLen(nodes[2]);
 
@@ -367,7 +733,7 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
                  + (nodes[2] != null ? 1 : 0);
 
     // no rebalance needed
-    if (newLen >= _settings.minBranchingFactor() || (left == null && right == null)) {
+    if (newLen >= _settings.minLen(_level) || (left == null && right == null)) {
       // can update in place
       if (editable() && idx < _len-2) {
         Stitch ks = new Stitch(_keys, Math.max(idx-1, 0));
@@ -386,11 +752,20 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
             as.copyAll(_addresses, idx+2, _len);
         }
 
+        if (_counts != null) {
+          Stitch ns = new Stitch(_counts, Math.max(idx - 1, 0));
+          if (nodes[0] != null) ns.copyOne(leftChanged ? 0 : cachedCount(idx - 1));
+                                ns.copyOne(0);
+          if (nodes[2] != null) ns.copyOne(rightChanged ? 0 : cachedCount(idx + 1));
+          if (newLen != _len)
+            ns.copyAll(_counts, idx+2, _len);
+        }
+
         ensureChildren();
         Stitch cs = new Stitch(_children, Math.max(idx - 1, 0));
-        if (nodes[0] != null) cs.copyOne(nodes[0]);
+        if (nodes[0] != null) cs.copyOne(leftChanged ? nodes[0] : _children[idx - 1]);
                               cs.copyOne(nodes[1]);
-        if (nodes[2] != null) cs.copyOne(nodes[2]);
+        if (nodes[2] != null) cs.copyOne(rightChanged ? nodes[2] : _children[idx + 1]);
         if (newLen != _len)
           cs.copyAll(_children, idx+2, _len);
 
@@ -416,12 +791,21 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
         as.copyAll(_addresses, idx + 2, _len);
       }
 
+      if (_counts != null) {
+        Stitch ns = new Stitch(newCenter.ensureCounts(), 0);
+        ns.copyAll(_counts, 0, idx - 1);
+        if (nodes[0] != null) ns.copyOne(leftChanged ? 0 : cachedCount(idx - 1));
+                              ns.copyOne(0);
+        if (nodes[2] != null) ns.copyOne(rightChanged ? 0 : cachedCount(idx + 1));
+        ns.copyAll(_counts, idx + 2, _len);
+      }
+
       newCenter.ensureChildren();
       Stitch cs = new Stitch(newCenter._children, 0);
       cs.copyAll(_children, 0, idx - 1);
-      if (nodes[0] != null) cs.copyOne(nodes[0]);
+      if (nodes[0] != null) cs.copyOne(leftChanged ? nodes[0] : _children[idx - 1]);
                             cs.copyOne(nodes[1]);
-      if (nodes[2] != null) cs.copyOne(nodes[2]);
+      if (nodes[2] != null) cs.copyOne(rightChanged ? nodes[2] : _children[idx + 1]);
       cs.copyAll(_children, idx + 2, _len);
 
       return new ANode[] { left, newCenter, right };
@@ -449,13 +833,23 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
         as.copyAll(_addresses, idx + 2, _len);
       }
 
+      if (left._counts != null || _counts != null) {
+        Stitch ns = new Stitch(join.ensureCounts(), 0);
+        ns.copyAll(left._counts, 0, left._len);
+        ns.copyAll(_counts,      0, idx - 1);
+        if (nodes[0] != null) ns.copyOne(leftChanged ? 0 : cachedCount(idx - 1));
+                              ns.copyOne(0);
+        if (nodes[2] != null) ns.copyOne(rightChanged ? 0 : cachedCount(idx + 1));
+        ns.copyAll(_counts, idx + 2, _len);
+      }
+
       join.ensureChildren();
       Stitch cs = new Stitch(join._children, 0);
       cs.copyAll(left._children, 0, left._len);
       cs.copyAll(_children,      0, idx - 1);
-      if (nodes[0] != null) cs.copyOne(nodes[0]);
+      if (nodes[0] != null) cs.copyOne(leftChanged ? nodes[0] : _children[idx - 1]);
                             cs.copyOne(nodes[1]);
-      if (nodes[2] != null) cs.copyOne(nodes[2]);
+      if (nodes[2] != null) cs.copyOne(rightChanged ? nodes[2] : _children[idx + 1]);
       cs.copyAll(_children, idx + 2, _len);
 
       return new ANode[] { null, join, right };
@@ -483,12 +877,22 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
         as.copyAll(right._addresses, 0, right._len);
       }
 
+      if (_counts != null || right._counts != null) {
+        Stitch ns = new Stitch(join.ensureCounts(), 0);
+        ns.copyAll(_counts, 0, idx - 1);
+        if (nodes[0] != null) ns.copyOne(leftChanged ? 0 : cachedCount(idx - 1));
+                              ns.copyOne(0);
+        if (nodes[2] != null) ns.copyOne(rightChanged ? 0 : cachedCount(idx + 1));
+        ns.copyAll(_counts, idx + 2, _len);
+        ns.copyAll(right._counts, 0, right._len);
+      }
+
       join.ensureChildren();
       Stitch cs = new Stitch(join._children, 0);
       cs.copyAll(_children, 0, idx - 1);
-      if (nodes[0] != null) cs.copyOne(nodes[0]);
+      if (nodes[0] != null) cs.copyOne(leftChanged ? nodes[0] : _children[idx - 1]);
                             cs.copyOne(nodes[1]);
-      if (nodes[2] != null) cs.copyOne(nodes[2]);
+      if (nodes[2] != null) cs.copyOne(rightChanged ? nodes[2] : _children[idx + 1]);
       cs.copyAll(_children,     idx + 2, _len);
       cs.copyAll(right._children, 0, right._len);
       
@@ -517,6 +921,9 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
       if (left._addresses != null) {
         ArrayUtil.copy(left._addresses, 0, newLeftLen, newLeft.ensureAddresses(), 0);
       }
+      if (left._counts != null) {
+        System.arraycopy(left._counts, 0, newLeft.ensureCounts(), 0, newLeftLen);
+      }
       if (left._children != null) {
         ArrayUtil.copy(left._children, 0, newLeftLen, newLeft.ensureChildren(), 0);
       }
@@ -531,13 +938,23 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
         as.copyAll(_addresses, idx + 2, _len);
       }
 
+      if (left._counts != null || _counts != null) {
+        Stitch ns = new Stitch(newCenter.ensureCounts(), 0);
+        ns.copyAll(left._counts, newLeftLen, left._len);
+        ns.copyAll(_counts, 0, idx - 1);
+        if (nodes[0] != null) ns.copyOne(leftChanged ? 0 : cachedCount(idx - 1));
+                              ns.copyOne(0);
+        if (nodes[2] != null) ns.copyOne(rightChanged ? 0 : cachedCount(idx + 1));
+        ns.copyAll(_counts, idx + 2, _len);
+      }
+
       newCenter.ensureChildren();
       Stitch cs = new Stitch(newCenter._children, 0);
       cs.copyAll(left._children, newLeftLen, left._len);
       cs.copyAll(_children, 0, idx - 1);
-      if (nodes[0] != null) cs.copyOne(nodes[0]);
+      if (nodes[0] != null) cs.copyOne(leftChanged ? nodes[0] : _children[idx - 1]);
                             cs.copyOne(nodes[1]);
-      if (nodes[2] != null) cs.copyOne(nodes[2]);
+      if (nodes[2] != null) cs.copyOne(rightChanged ? nodes[2] : _children[idx + 1]);
       cs.copyAll(_children, idx + 2, _len);
 
       return new ANode[] { newLeft, newCenter, right };
@@ -573,18 +990,31 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
         as.copyAll(right._addresses, 0, rightHead);
       }
 
+      if (_counts != null || right._counts != null) {
+        Stitch ns = new Stitch(newCenter.ensureCounts(), 0);
+        ns.copyAll(_counts, 0, idx - 1);
+        if (nodes[0] != null) ns.copyOne(leftChanged ? 0 : cachedCount(idx - 1));
+                              ns.copyOne(0);
+        if (nodes[2] != null) ns.copyOne(rightChanged ? 0 : cachedCount(idx + 1));
+        ns.copyAll(_counts, idx + 2, _len);
+        ns.copyAll(right._counts, 0, rightHead);
+      }
+
       newCenter.ensureChildren();
       Stitch cs = new Stitch(newCenter._children, 0);
       cs.copyAll(_children, 0, idx - 1);
-      if (nodes[0] != null) cs.copyOne(nodes[0]);
+      if (nodes[0] != null) cs.copyOne(leftChanged ? nodes[0] : _children[idx - 1]);
                             cs.copyOne(nodes[1]);
-      if (nodes[2] != null) cs.copyOne(nodes[2]);
+      if (nodes[2] != null) cs.copyOne(rightChanged ? nodes[2] : _children[idx + 1]);
       cs.copyAll(_children, idx + 2, _len);
       cs.copyAll(right._children, 0, rightHead);
 
       if (right._addresses != null) {
         ArrayUtil.copy(right._addresses, rightHead, right._len, newRight.ensureAddresses(), 0);
       }
+      if (right._counts != null) {
+        System.arraycopy(right._counts, rightHead, newRight.ensureCounts(), 0, newRightLen);
+      }
       if (right._children != null) {
         ArrayUtil.copy(right._children, rightHead, right._len, newRight.ensureChildren(), 0);
       }
@@ -595,6 +1025,175 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
     throw new RuntimeException("Unreachable");
   }
 
+  @Override
+  public ANode[] addAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, Settings settings, int[] delta) {
+    return mergeAll(storage, keys, from, to, cmp, settings, delta, true);
+  }
+
+  @Override
+  public ANode[] removeAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, Settings settings, int[] delta) {
+    return mergeAll(storage, keys, from, to, cmp, settings, delta, false);
+  }
+
+  // Each child is visited at most once with all of its keys. Children that didn’t
+  // change are kept as Integer idx, so their address/count/child are reused as-is.
+  // Editable branch is updated in place if every changed child stayed one node
+  protected ANode[] mergeAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, Settings settings, int[] delta, boolean add) {
+    ArrayList<Object> slots = new ArrayList<>(_len + 1);
+    boolean changed = false, inPlace = editable();
+    int[] deltas = inPlace ? new int[_len] : null;
+    int pos = from;
+    for (int i = 0; i < _len; ++i) {
+      int end = (add && i == _len - 1) ? to : ArrayUtil.upperBound(keys, pos, to, _keys[i], cmp);
+      ANode[] nodes = PersistentSortedSet.UNCHANGED;
+      if (pos < end) {
+        ANode child = child(storage, i);
+        int before = delta[0];
+        nodes = add ? child.addAll(storage, keys, pos, end, cmp, settings, delta)
+                    : child.removeAll(storage, keys, pos, end, cmp, settings, delta);
+        if (inPlace)
+          deltas[i] = delta[0] - before;
+        pos = end;
+      }
+      if (PersistentSortedSet.UNCHANGED == nodes) {
+        slots.add(i);
+      } else {
+        changed = true;
+        inPlace = inPlace && nodes.length == 1 && nodes[0]._len >= settings.minLen(_level - 1);
+        for (ANode node: nodes)
+          slots.add(node);
+      }
+    }
+
+    if (!changed)
+      return PersistentSortedSet.UNCHANGED;
+
+    if (inPlace) {
+      for (int i = 0; i < _len; ++i) {
+        Object slot = slots.get(i);
+        if (slot instanceof ANode) {
+          ANode<Key, Address> node = (ANode<Key, Address>) slot;
+          _keys[i] = node.maxKey();
+          child(i, node);
+          adjustCount(i, deltas[i]);
+        }
+      }
+      return new ANode[]{ this }; // maxKey needs updating
+    }
+
+    // join underfilled nodes with neighbours
+    int min = settings.minLen(_level - 1);
+    ArrayList<Object> joined = new ArrayList<>(slots.size());
+    for (Object slot: slots) {
+      int last = joined.size() - 1;
+      if (last >= 0 && (underfilled(slot, min) || underfilled(joined.get(last), min))) {
+        ANode left = slotNode(storage, joined.remove(last));
+        for (ANode node: join(left, slotNode(storage, slot), settings))
+          joined.add(node);
+      } else {
+        joined.add(slot);
+      }
+    }
+    int last = joined.size() - 1;
+    if (last >= 1 && underfilled(joined.get(last), min)) {
+      ANode right = slotNode(storage, joined.remove(last));
+      ANode left = slotNode(storage, joined.remove(last - 1));
+      for (ANode node: join(left, right, settings))
+        joined.add(node);
+    }
+
+    int len = joined.size();
+    Key[] newKeys = (Key[]) new Object[len];
+    Address[] newAddresses = _addresses == null ? null : (Address[]) new Object[len];
+    int[] newCounts = new int[len];
+    Object[] newChildren = new Object[len];
+    for (int i = 0; i < len; ++i) {
+      Object slot = joined.get(i);
+      if (slot instanceof ANode) {
+        newKeys[i] = ((ANode<Key, Address>) slot).maxKey();
+        newChildren[i] = slot;
+      } else {
+        int idx = (Integer) slot;
+        newKeys[i] = _keys[idx];
+        if (newAddresses != null)
+          newAddresses[i] = _addresses[idx];
+        newCounts[i] = cachedCount(idx);
+        newChildren[i] = _children == null ? null : _children[idx];
+      }
+    }
+    return pack(_level, newKeys, newAddresses, newCounts, newChildren, len, settings);
+  }
+
+  protected static boolean underfilled(Object slot, int min) {
+    return slot instanceof ANode && ((ANode) slot)._len < min;
+  }
+
+  protected ANode slotNode(IStorage storage, Object slot) {
+    return slot instanceof ANode ? (ANode) slot : child(storage, (Integer) slot);
+  }
+
+  // left and right are neighbours on the same level
+  protected static ANode[] join(ANode left, ANode right, Settings settings) {
+    int len = left._len + right._len;
+    Object[] keys = new Object[len];
+    new Stitch(keys, 0)
+      .copyAll(left._keys, 0, left._len)
+      .copyAll(right._keys, 0, right._len);
+
+    if (left instanceof Leaf)
+      return Leaf.pack(keys, len, settings);
+
+    Branch l = (Branch) left, r = (Branch) right;
+    Object[] addresses = null;
+    if (l._addresses != null || r._addresses != null) {
+      addresses = new Object[len];
+      new Stitch(addresses, 0)
+        .copyAll(l._addresses, 0, l._len)
+        .copyAll(r._addresses, 0, r._len);
+    }
+    int[] counts = null;
+    if (l._counts != null || r._counts != null) {
+      counts = new int[len];
+      new Stitch(counts, 0)
+        .copyAll(l._counts, 0, l._len)
+        .copyAll(r._counts, 0, r._len);
+    }
+    Object[] children = null;
+    if (l._children != null || r._children != null) {
+      children = new Object[len];
+      new Stitch(children, 0)
+        .copyAll(l._children, 0, l._len)
+        .copyAll(r._children, 0, r._len);
+    }
+    return pack(l._level, keys, addresses, counts, children, len, settings);
+  }
+
+  // Splits [0 ... len-1] evenly between as few branches as possible
+  public static ANode[] pack(int level, Object[] keys, Object[] addresses, int[] counts, Object[] children, int len, Settings settings) {
+    int bf = settings.branchingFactor();
+    int parts = (len + bf - 1) / bf;
+    ANode[] res = new ANode[parts];
+    for (int p = 0; p < parts; ++p) {
+      int start = (int) ((long) len * p / parts),
+          end   = (int) ((long) len * (p + 1) / parts);
+      res[p] = new Branch(level, end - start,
+                          Arrays.copyOfRange(keys, start, end, Object[].class),
+                          addresses == null ? null : Arrays.copyOfRange(addresses, start, end, Object[].class),
+                          counts == null ? null : Arrays.copyOfRange(counts, start, end),
+                          children == null ? null : Arrays.copyOfRange(children, start, end, Object[].class),
+                          settings);
+    }
+    return res;
+  }
+
+  // Puts nodes under as few new branches as possible
+  public static ANode[] pack(ANode[] nodes, Settings settings) {
+    Object[] keys = new Object[nodes.length];
+    for (int i = 0; i < nodes.length; ++i)
+      keys[i] = nodes[i].maxKey();
+    return pack(nodes[0].level() + 1, keys, null, null, nodes, nodes.length, settings);
+  }
+
   @Override
   public void walkAddresses(IStorage storage, IFn onAddress) {
     for (int i = 0; i < _len; ++i) {
@@ -618,7 +1217,11 @@ public class Branch<Key, Address> extends ANode<Key, Address> {
         assert _children != null;
         assert _children[i] != null;
         assert _children[i] instanceof ANode;
-        address(i, ((ANode<Key, Address>) _children[i]).store(storage));
+        ANode<Key, Address> child = (ANode<Key, Address>) _children[i];
+        address(i, child.store(storage));
+        if (cachedCount(i) <= 0) {
+          ensureCounts()[i] = child.count(storage);
+        }
       }
     }
     return storage.store(this);
@@ -0,0 +1,283 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+
+// Builds tree bottom-up from sorted distinct keys. Each level buffers at most
+// 2 * avg(level) items, so keys can be streamed without holding them all in memory.
+//
+// Splitting matches from-sorted-array: cut avg items while 2 * avg or more
+// are left, then the rest goes into one node (if fits) or two halves.
+//
+// Whole existing subtrees can be added with addGraft, they are linked as is,
+// without being restored or copied. They must follow the same size limits
+@SuppressWarnings("unchecked")
+class Builder {
+  public static final double DEFAULT_FILL_FACTOR = 0.75;
+
+  // idx-th child of parent, in a tree that uses storage
+  static class Graft {
+    final Branch _parent;
+    final int _idx;
+    final IStorage _storage;
+
+    Graft(Branch parent, int idx, IStorage storage) {
+      _parent  = parent;
+      _idx     = idx;
+      _storage = storage;
+    }
+
+    // 0 for leaf, same as ANode::level
+    int level() {
+      return _parent._level - 1;
+    }
+
+    ANode node() {
+      return _parent.child(_storage, _idx);
+    }
+  }
+
+  final Settings _settings;
+  final IStorage _storage;
+  // Per level, leaves and branches can have different branching factors
+  final int[] _avg, _max;
+  // _buffers[0] == keys, _buffers[1+] == nodes of level below
+  Object[][] _buffers = new Object[0][];
+  int[] _lens = new int[0];
+  // -1 once a graft of unknown size was added
+  int _count = 0;
+
+  Builder(Settings settings, double fillFactor) {
+    this(settings, fillFactor, null);
+  }
+
+  Builder(Settings settings, double fillFactor, IStorage storage) {
+    _settings = settings;
+    _storage  = storage;
+    _max = new int[] {settings.branchingFactor(0), settings.branchingFactor(1)};
+    _avg = new int[2];
+    for (int l = 0; l < 2; ++l)
+      _avg[l] = Math.max(1, Math.max(settings.minLen(l), Math.min(_max[l], (int) Math.round(_max[l] * fillFactor))));
+  }
+
+  int avg(int level) {
+    return _avg[level == 0 ? 0 : 1];
+  }
+
+  int max(int level) {
+    return _max[level == 0 ? 0 : 1];
+  }
+
+  void addKey(Object key) {
+    add(0, key);
+    addCount(1);
+  }
+
+  void addCount(int count) {
+    _count = _count < 0 || count <= 0 ? -1 : _count + count;
+  }
+
+  // Cuts leaves directly from keys[0 ... len-1], no intermediate copies
+  void addKeys(Object[] keys, int len) {
+    int from = 0;
+    int avg = avg(0);
+    while (len - from >= 2 * avg) {
+      add(1, node(0, keys, from, from + avg));
+      from += avg;
+    }
+    flush(0, keys, from, len);
+    if (len > 0)
+      addCount(len);
+  }
+
+  // Adds subtree after everything added so far. Pending items of lower levels
+  // are packed into nodes first. If there are too few of them to make a proper
+  // node, subtree is expanded and its children are added instead. Size of
+  // subtree is only taken from parent’s counts, it’s not restored to count it
+  void addGraft(Graft graft) {
+    int level = graft.level() + 1;
+    if (canPack(level)) {
+      for (int l = 0; l < level && l < _buffers.length; ++l) {
+        int len = _lens[l];
+        if (len > 0) {
+          flush(l, _buffers[l], 0, len);
+          Arrays.fill(_buffers[l], 0, len, null);
+          _lens[l] = 0;
+        }
+      }
+      add(level, graft);
+      addCount(graft._parent.cachedCount(graft._idx));
+    } else {
+      expand(graft.node(), graft._storage);
+    }
+  }
+
+  // Adds children of node one level below
+  void expand(ANode node, IStorage storage) {
+    if (node instanceof Branch) {
+      for (int i = 0; i < node._len; ++i)
+        addGraft(new Graft((Branch) node, i, storage));
+    } else {
+      for (int i = 0; i < node._len; ++i)
+        addKey(node._keys[i]);
+    }
+  }
+
+  // Whether pending items below level can be packed without undersized nodes
+  boolean canPack(int level) {
+    int carry = 0;
+    for (int l = 0; l < level; ++l) {
+      int len = (l < _lens.length ? _lens[l] : 0) + carry;
+      if (len == 0) {
+        carry = 0;
+      } else if (len < _settings.minLen(l)) {
+        return false;
+      } else {
+        carry = len > max(l) ? 2 : 1;
+      }
+    }
+    return true;
+  }
+
+  void add(int level, Object item) {
+    if (level >= _buffers.length) {
+      int old = _buffers.length;
+      _buffers = Arrays.copyOf(_buffers, level + 1);
+      _lens = Arrays.copyOf(_lens, level + 1);
+      // grafts may skip levels
+      for (int l = old; l <= level; ++l)
+        _buffers[l] = new Object[2 * avg(l)];
+    }
+    Object[] buffer = _buffers[level];
+    buffer[_lens[level]++] = item;
+    if (_lens[level] == buffer.length) {
+      int avg = avg(level);
+      add(level + 1, node(level, buffer, 0, avg));
+      System.arraycopy(buffer, avg, buffer, 0, avg);
+      Arrays.fill(buffer, avg, buffer.length, null);
+      _lens[level] = avg;
+    }
+  }
+
+  void flush(int level, Object[] items, int from, int to) {
+    int len = to - from;
+    if (len == 0) {
+      return;
+    } else if (len <= max(level)) {
+      add(level + 1, node(level, items, from, to));
+    } else {
+      int half = from + (len >>> 1);
+      add(level + 1, node(level, items, from, half));
+      add(level + 1, node(level, items, half, to));
+    }
+  }
+
+  ANode node(int level, Object[] items, int from, int to) {
+    int len = to - from;
+    if (level == 0) {
+      return new Leaf(len, Arrays.copyOfRange(items, from, to, Object[].class), _settings);
+    }
+    Object[] keys = new Object[len];
+    Object[] addresses = null;
+    int[] counts = new int[len];
+    Object[] children = new Object[len];
+    for (int i = 0; i < len; ++i) {
+      Object item = items[from + i];
+      if (item instanceof Graft) {
+        Graft graft = (Graft) item;
+        Branch parent = graft._parent;
+        int idx = graft._idx;
+        keys[i] = parent._keys[idx];
+        counts[i] = parent.cachedCount(idx); // 0 if unknown
+        Object address = parent.address(idx);
+        if (address != null) {
+          if (addresses == null) addresses = new Object[len];
+          addresses[i] = address;
+        }
+        Object child = parent._children == null ? null : parent._settings.readReference(parent._children[idx]);
+        children[i] = child == null ? null : address == null ? child : _settings.makeReference(child);
+      } else {
+        ANode child = (ANode) item;
+        keys[i] = child.maxKey();
+        counts[i] = knownCount(child);
+        children[i] = child;
+      }
+    }
+    return new Branch(level, len, keys, addresses, counts, children, _settings);
+  }
+
+  // Size of node built here, 0 if it has grafts of unknown size
+  static int knownCount(ANode node) {
+    if (!(node instanceof Branch))
+      return node._len;
+    Branch branch = (Branch) node;
+    int count = 0;
+    for (int i = 0; i < branch._len; ++i) {
+      int c = branch.cachedCount(i);
+      if (c <= 0)
+        return 0;
+      count += c;
+    }
+    return count;
+  }
+
+  // Pending items of lower levels always come after items of higher levels.
+  // If some level has too few of them for a proper node (counting nodes that
+  // levels below will flush into it), last item of the closest higher level
+  // is expanded to make up for it. Doesn’t change _count
+  void fixTail() {
+    int carry = 0;
+    for (int l = 0; l < _buffers.length; ++l) {
+      int len = _lens[l] + carry;
+      carry = len == 0 ? 0 : len > max(l) ? 2 : 1;
+      if (len == 0 || len >= _settings.minLen(l))
+        continue;
+      int h = l + 1;
+      while (h < _buffers.length && _lens[h] == 0)
+        ++h;
+      if (h >= _buffers.length)
+        return; // l is the top, will become root
+      Object last = _buffers[h][--_lens[h]];
+      _buffers[h][_lens[h]] = null;
+      Object[][] tail = new Object[h][];
+      for (int i = 0; i < h; ++i) {
+        tail[i] = Arrays.copyOf(_buffers[i], _lens[i]);
+        Arrays.fill(_buffers[i], null);
+        _lens[i] = 0;
+      }
+      if (last instanceof Graft) {
+        Graft graft = (Graft) last;
+        ANode node = graft.node();
+        for (int i = 0; i < node._len; ++i)
+          add(h - 1, node instanceof Branch ? new Graft((Branch) node, i, graft._storage) : node._keys[i]);
+      } else {
+        ANode node = (ANode) last;
+        for (int i = 0; i < node._len; ++i)
+          add(h - 1, node instanceof Branch ? new Graft((Branch) node, i, _storage) : node._keys[i]);
+      }
+      for (int i = h - 1; i >= 0; --i)
+        for (Object item: tail[i])
+          add(i, item);
+      l = -1; // start over
+      carry = 0;
+    }
+  }
+
+  ANode root() {
+    fixTail();
+    for (int level = 0; level < _buffers.length; ++level) {
+      int len = _lens[level];
+      boolean top = level == _buffers.length - 1;
+      if (top && level > 0 && len == 1) {
+        Object item = _buffers[level][0];
+        return item instanceof Graft ? ((Graft) item).node() : (ANode) item;
+      }
+      flush(level, _buffers[level], 0, len);
+    }
+    return new Leaf(0, _settings);
+  }
+
+  PersistentSortedSet build(Comparator cmp, IStorage storage) {
+    ANode root = root();
+    return new PersistentSortedSet(null, cmp, null, storage, root, _count, _settings, 0);
+  }
+}
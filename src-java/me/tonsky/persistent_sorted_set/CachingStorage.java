@@ -0,0 +1,224 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * IStorage wrapper that keeps recently restored/stored nodes in a
+ * size-bounded cache, so that underlying storage only has to deal
+ * with cache misses.
+ *
+ * Capacity is in whatever units weigher returns: NODES (default) counts
+ * nodes, BYTES estimates heap footprint of node arrays (not keys).
+ *
+ * Cache is split into segments by address hash, each guarded by its own
+ * lock, so concurrent readers rarely contend.
+ */
+@SuppressWarnings("unchecked")
+public class CachingStorage<Key, Address> implements IStorage<Key, Address> {
+  public enum Eviction { LRU, CLOCK, TINY_LFU }
+
+  public static final ToLongFunction<ANode> NODES = node -> 1;
+  public static final ToLongFunction<ANode> BYTES = CachingStorage::estimateBytes;
+
+  public final IStorage<Key, Address> _storage;
+  public final ToLongFunction<ANode> _weigher;
+  public final ACache[] _segments;
+  final LongAdder _hits = new LongAdder();
+  final LongAdder _misses = new LongAdder();
+  final LongAdder _evictions = new LongAdder();
+
+  public CachingStorage(IStorage<Key, Address> storage, long capacity) {
+    this(storage, capacity, Eviction.LRU, NODES, 16);
+  }
+
+  public CachingStorage(IStorage<Key, Address> storage, long capacity, Eviction eviction) {
+    this(storage, capacity, eviction, NODES, 16);
+  }
+
+  public CachingStorage(IStorage<Key, Address> storage, long capacity, Eviction eviction, ToLongFunction<ANode> weigher, int concurrency) {
+    this(storage, capacity, segmentCapacity -> {
+      switch (eviction) {
+        case LRU:      return new LRUCache(segmentCapacity);
+        case CLOCK:    return new ClockCache(segmentCapacity);
+        case TINY_LFU: return new TinyLFUCache(segmentCapacity, (int) Math.min(Integer.MAX_VALUE, weigher == NODES ? segmentCapacity : segmentCapacity / 4096));
+        default:       throw new IllegalArgumentException("Unknown eviction policy: " + eviction);
+      }
+    }, weigher, concurrency);
+  }
+
+  /**
+   * For custom eviction policies: cacheFn receives capacity of a single segment
+   */
+  public CachingStorage(IStorage<Key, Address> storage, long capacity, LongFunction<ACache> cacheFn, ToLongFunction<ANode> weigher, int concurrency) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive, got: " + capacity);
+    }
+    _storage = storage;
+    _weigher = weigher;
+    int segments = Integer.highestOneBit(Math.max(1, (int) Math.min(concurrency, capacity)));
+    _segments = new ACache[segments];
+    for (int i = 0; i < segments; ++i) {
+      _segments[i] = cacheFn.apply(capacity / segments);
+    }
+  }
+
+  ACache segment(Object address) {
+    int h = address.hashCode();
+    h ^= h >>> 16;
+    return _segments[h & (_segments.length - 1)];
+  }
+
+  void cache(Address address, ANode<Key, Address> node) {
+    long weight = _weigher.applyAsLong(node);
+    ACache segment = segment(address);
+    int evicted;
+    synchronized (segment) {
+      evicted = segment.put(address, node, weight);
+    }
+    if (evicted > 0) {
+      _evictions.add(evicted);
+    }
+  }
+
+  @Override
+  public ANode<Key, Address> restore(Address address) {
+    ACache segment = segment(address);
+    Object node;
+    synchronized (segment) {
+      node = segment.get(address);
+    }
+    if (node != null) {
+      _hits.increment();
+      return (ANode<Key, Address>) node;
+    }
+    _misses.increment();
+    ANode<Key, Address> restored = _storage.restore(address);
+    cache(address, restored);
+    return restored;
+  }
+
+  @Override
+  public void accessed(Address address) {
+    // Node is still in memory, but cache should know it’s in use
+    ACache segment = segment(address);
+    synchronized (segment) {
+      segment.get(address);
+    }
+    _storage.accessed(address);
+  }
+
+  @Override
+  public int prefetchSize() {
+    return _storage.prefetchSize();
+  }
+
+  @Override
+  public void prefetch(List<Address> addresses) {
+    _storage.prefetch(addresses);
+  }
+
+  @Override
+  public Address store(ANode<Key, Address> node) {
+    Address address = _storage.store(node);
+    // editable nodes might still change in place, don’t share them
+    if (address != null && !node.editable()) {
+      cache(address, node);
+    }
+    return address;
+  }
+
+  @Override
+  public List<Address> storeAll(List<ANode<Key, Address>> nodes) {
+    List<Address> addresses = _storage.storeAll(nodes);
+    for (int i = 0; i < addresses.size(); ++i) {
+      Address address = addresses.get(i);
+      if (address != null && !nodes.get(i).editable()) {
+        cache(address, nodes.get(i));
+      }
+    }
+    return addresses;
+  }
+
+  @Override
+  public void flush(Address root) {
+    _storage.flush(root);
+  }
+
+  public void invalidate(Address address) {
+    ACache segment = segment(address);
+    synchronized (segment) {
+      segment.remove(address);
+    }
+  }
+
+  public void clear() {
+    for (ACache segment: _segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  public long hits() {
+    return _hits.sum();
+  }
+
+  public long misses() {
+    return _misses.sum();
+  }
+
+  public long evictions() {
+    return _evictions.sum();
+  }
+
+  public int size() {
+    int size = 0;
+    for (ACache segment: _segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  public long weight() {
+    long weight = 0;
+    for (ACache segment: _segments) {
+      synchronized (segment) {
+        weight += segment.weight();
+      }
+    }
+    return weight;
+  }
+
+  public void resetStats() {
+    _hits.reset();
+    _misses.reset();
+    _evictions.reset();
+  }
+
+  // Shallow size of node and its arrays, assuming 16-byte headers
+  // and 8-byte references. Keys themselves are not counted
+  public static long estimateBytes(ANode node) {
+    long bytes = 32 + 16 + 8L * node._keys.length;
+    if (node instanceof Branch) {
+      Branch branch = (Branch) node;
+      bytes += 8;
+      if (branch._addresses != null) {
+        bytes += 16 + 8L * branch._addresses.length;
+      }
+      if (branch._children != null) {
+        bytes += 16 + 8L * branch._children.length;
+      }
+      if (branch._counts != null) {
+        bytes += 16 + 4L * branch._counts.length;
+      }
+      if (branch._hints != null) {
+        bytes += 16 + 8L * branch._hints.length;
+      }
+    }
+    return bytes;
+  }
+}
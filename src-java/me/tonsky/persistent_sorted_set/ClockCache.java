@@ -0,0 +1,108 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+
+// Entries form a ring. Access only sets a bit, eviction sweeps the ring
+// clearing bits and evicts first entry that wasn’t accessed since last sweep
+class ClockCache extends ACache {
+  final HashMap<Object, Node> _map = new HashMap<>();
+  Node _hand;
+
+  static class Node extends Entry {
+    boolean referenced;
+    Node prev, next;
+
+    Node(Object key, Object value, long weight) {
+      super(key, value, weight);
+    }
+  }
+
+  ClockCache(long capacity) {
+    super(capacity);
+  }
+
+  @Override
+  public Object get(Object key) {
+    Node n = _map.get(key);
+    if (n == null) {
+      return null;
+    }
+    n.referenced = true;
+    return n.value;
+  }
+
+  @Override
+  public int put(Object key, Object value, long weight) {
+    Node n = _map.get(key);
+    if (n != null) {
+      _weight += weight - n.weight;
+      n.value = value;
+      n.weight = weight;
+      n.referenced = true;
+    } else {
+      n = new Node(key, value, weight);
+      _map.put(key, n);
+      _weight += weight;
+      // right behind the hand == visited last
+      if (_hand == null) {
+        n.prev = n;
+        n.next = n;
+        _hand = n;
+      } else {
+        n.next = _hand;
+        n.prev = _hand.prev;
+        _hand.prev.next = n;
+        _hand.prev = n;
+      }
+    }
+
+    int evicted = 0;
+    while (_weight > _capacity && _hand != null) {
+      while (_hand.referenced) {
+        _hand.referenced = false;
+        _hand = _hand.next;
+      }
+      Node victim = _hand;
+      unlink(victim);
+      _map.remove(victim.key);
+      _weight -= victim.weight;
+      ++evicted;
+    }
+    return evicted;
+  }
+
+  void unlink(Node n) {
+    if (n.next == n) {
+      _hand = null;
+    } else {
+      n.prev.next = n.next;
+      n.next.prev = n.prev;
+      if (_hand == n) {
+        _hand = n.next;
+      }
+    }
+    n.prev = null;
+    n.next = null;
+  }
+
+  @Override
+  public void remove(Object key) {
+    Node n = _map.remove(key);
+    if (n != null) {
+      unlink(n);
+      _weight -= n.weight;
+    }
+  }
+
+  @Override
+  public int size() {
+    return _map.size();
+  }
+
+  @Override
+  public void clear() {
+    _map.clear();
+    _hand = null;
+    _weight = 0;
+  }
+}
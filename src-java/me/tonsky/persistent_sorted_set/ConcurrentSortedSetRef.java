@@ -0,0 +1,130 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import clojure.lang.*;
+
+/**
+ * Mutable reference to a PersistentSortedSet shared by many writers.
+ *
+ * Instead of every writer path-copying its own cons and retrying on
+ * contention (as with swap! on an atom), writers enqueue their operations
+ * and one of them becomes the combiner: it drains the queue, applies
+ * everything through a single transient and publishes the result with CAS.
+ * Other writers spin until their operation is applied.
+ *
+ * deref() is wait-free and returns an immutable snapshot.
+ */
+@SuppressWarnings("unchecked")
+public class ConcurrentSortedSetRef implements IDeref {
+  static class Op {
+    final Object _key;
+    final boolean _add;
+    // 0 pending, 1 applied & changed set, -1 applied & didn’t
+    volatile int _result;
+    // Set before _result, rethrown in writer’s thread
+    RuntimeException _error;
+
+    Op(Object key, boolean add) {
+      _key = key;
+      _add = add;
+    }
+  }
+
+  final AtomicReference<PersistentSortedSet> _set;
+  final ConcurrentLinkedQueue<Op> _queue = new ConcurrentLinkedQueue<>();
+  final AtomicBoolean _combining = new AtomicBoolean();
+  // Max operations applied in one transient, bounds latency of combiner’s own op
+  final int _maxBatch;
+
+  public ConcurrentSortedSetRef(PersistentSortedSet set) {
+    this(set, 4096);
+  }
+
+  public ConcurrentSortedSetRef(PersistentSortedSet set, int maxBatch) {
+    if (set.editable()) {
+      throw new IllegalArgumentException("Expected persistent set");
+    }
+    _set = new AtomicReference<>(set);
+    _maxBatch = maxBatch;
+  }
+
+  // IDeref
+  public PersistentSortedSet deref() {
+    return _set.get();
+  }
+
+  // Replaces snapshot if it’s still expected. Pending operations will be
+  // applied on top of whatever snapshot is current when they’re combined
+  public boolean compareAndSet(PersistentSortedSet expected, PersistentSortedSet set) {
+    if (set.editable()) {
+      throw new IllegalArgumentException("Expected persistent set");
+    }
+    return _set.compareAndSet(expected, set);
+  }
+
+  // true if key wasn’t in set
+  public boolean add(Object key) {
+    return apply(new Op(key, true));
+  }
+
+  // true if key was in set
+  public boolean remove(Object key) {
+    return apply(new Op(key, false));
+  }
+
+  boolean apply(Op op) {
+    _queue.add(op);
+    while (op._result == 0) {
+      if (_combining.compareAndSet(false, true)) {
+        try {
+          combine();
+        } finally {
+          _combining.set(false);
+        }
+      } else {
+        Thread.yield();
+      }
+    }
+    if (op._error != null)
+      throw op._error;
+    return op._result > 0;
+  }
+
+  // Applies one batch of queued operations
+  void combine() {
+    ArrayList<Op> batch = new ArrayList<>();
+    Op op;
+    while (batch.size() < _maxBatch && (op = _queue.poll()) != null)
+      batch.add(op);
+    if (batch.isEmpty())
+      return;
+
+    int[] results = new int[batch.size()];
+    RuntimeException[] errors = new RuntimeException[batch.size()];
+    PersistentSortedSet set, res;
+    do {
+      set = _set.get();
+      PersistentSortedSet t = set.asTransient();
+      for (int i = 0; i < batch.size(); ++i) {
+        op = batch.get(i);
+        int version = t._version;
+        try {
+          t = op._add ? t.cons(op._key) : t.disjoin(op._key);
+          results[i] = t._version == version ? -1 : 1;
+        } catch (RuntimeException e) { // e.g. key not comparable, fails before any mutation
+          results[i] = -1;
+          errors[i] = e;
+        }
+      }
+      res = t.persistent();
+    } while (!_set.compareAndSet(set, res)); // only fails on external compareAndSet
+
+    for (int i = 0; i < batch.size(); ++i) {
+      op = batch.get(i);
+      op._error = errors[i];
+      op._result = results[i];
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+
+/**
+ * Mutable position in a set, alternative to Seq for tight Java loops.
+ *
+ * Keeps (node, idx) for every level of the tree in two fixed arrays, so
+ * seekTo / next / prev don’t allocate. Cursor can be pointed at another
+ * set with reset() and reuses its arrays when the tree is not deeper.
+ *
+ * Starts invalid. next / prev past either end make it invalid, seek to
+ * make it valid again.
+ *
+ * <pre>
+ * Cursor c = set.cursor();
+ * for (c.seekToFirst(); c.valid(); c.next()) {
+ *   Object key = c.key();
+ * }
+ * </pre>
+ */
+@SuppressWarnings("unchecked")
+public class Cursor<Key, Address> {
+  PersistentSortedSet<Key, Address> _set;
+  ANode[] _nodes = new ANode[0];
+  int[] _idxs = new int[0];
+  // Levels in current set, _nodes[0] is root, _nodes[_depth - 1] is leaf
+  int _depth;
+  int _version;
+  boolean _valid;
+  // Current leaf, so that most next / prev calls don’t touch the arrays above.
+  // Leaf level lives here, _idxs[_depth - 1] is only used while descending
+  Object[] _keys;
+  int _len, _idx;
+
+  public Cursor(PersistentSortedSet<Key, Address> set) {
+    reset(set);
+  }
+
+  // Points cursor to another set (or another version of the same set)
+  public Cursor<Key, Address> reset(PersistentSortedSet<Key, Address> set) {
+    ANode root = set.root();
+    _set     = set;
+    _version = set._version;
+    _valid   = false;
+    _keys    = null;
+    _depth   = root._len == 0 ? 0 : root.level() + 1;
+    if (_nodes.length < _depth) {
+      _nodes = new ANode[_depth];
+      _idxs  = new int[_depth];
+    } else {
+      Arrays.fill(_nodes, null);
+    }
+    if (_depth > 0)
+      _nodes[0] = root;
+    return this;
+  }
+
+  void checkVersion() {
+    if (_version != _set._version)
+      throw new RuntimeException("Tovarisch, you are iterating and mutating a transient set at the same time!");
+  }
+
+  public boolean valid() {
+    return _valid;
+  }
+
+  public Key key() {
+    if (!_valid)
+      throw new NoSuchElementException();
+    checkVersion();
+    return (Key) _keys[_idx];
+  }
+
+  void loadLeaf() {
+    ANode leaf = _nodes[_depth - 1];
+    _keys = leaf._keys;
+    _len  = leaf._len;
+    _idx  = _idxs[_depth - 1];
+  }
+
+  // Fills levels below l from _idxs[l], positions at first (asc) or last key of subtree
+  void descend(int l, boolean asc) {
+    IStorage storage = _set._storage;
+    for (; l < _depth - 1; ++l) {
+      ANode child = ((Branch) _nodes[l]).child(storage, _idxs[l]);
+      _nodes[l + 1] = child;
+      _idxs[l + 1] = asc ? 0 : child._len - 1;
+    }
+  }
+
+  public boolean seekToFirst() {
+    checkVersion();
+    if (_depth == 0)
+      return _valid = false;
+    _idxs[0] = 0;
+    descend(0, true);
+    loadLeaf();
+    return _valid = true;
+  }
+
+  public boolean seekToLast() {
+    checkVersion();
+    if (_depth == 0)
+      return _valid = false;
+    _idxs[0] = _nodes[0]._len - 1;
+    descend(0, false);
+    loadLeaf();
+    return _valid = true;
+  }
+
+  // Positions at first key >= key. Invalid if there’s none
+  public boolean seekTo(Key key) {
+    return seekTo(key, _set._cmp);
+  }
+
+  public boolean seekTo(Key key, Comparator<Key> cmp) {
+    checkVersion();
+    if (_depth == 0)
+      return _valid = false;
+    IStorage storage = _set._storage;
+    ANode node = _nodes[0];
+    for (int l = 0; l < _depth; ++l) {
+      int idx = node.searchFirst(key, cmp);
+      if (idx == node._len) {
+        if (l == 0)
+          return _valid = false;
+        // key is after this subtree, continue from its last key
+        _idxs[l] = idx - 1;
+        descend(l, false);
+        loadLeaf();
+        _valid = true;
+        return next();
+      }
+      _idxs[l] = idx;
+      if (l < _depth - 1) {
+        node = ((Branch) node).child(storage, idx);
+        _nodes[l + 1] = node;
+      }
+    }
+    loadLeaf();
+    return _valid = true;
+  }
+
+  public boolean next() {
+    if (!_valid)
+      return false;
+    checkVersion();
+    if (_idx < _len - 1) {
+      ++_idx;
+      return true;
+    }
+    int l = _depth - 2;
+    while (l >= 0 && _idxs[l] == _nodes[l]._len - 1)
+      --l;
+    if (l < 0)
+      return _valid = false;
+    _idxs[l]++;
+    descend(l, true);
+    loadLeaf();
+    return true;
+  }
+
+  public boolean prev() {
+    if (!_valid)
+      return false;
+    checkVersion();
+    if (_idx > 0) {
+      --_idx;
+      return true;
+    }
+    int l = _depth - 2;
+    while (l >= 0 && _idxs[l] == 0)
+      --l;
+    if (l < 0)
+      return _valid = false;
+    _idxs[l]--;
+    descend(l, false);
+    loadLeaf();
+    return true;
+  }
+}
@@ -0,0 +1,95 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+import clojure.lang.*;
+
+// Walks two versions of a set together, yields MapEntry(key, added?) in key order.
+// Subtrees that are the same node or have the same address in both versions are
+// skipped without being restored, so it costs O(changes * log n) for sets sharing
+// structure
+@SuppressWarnings("unchecked")
+class Diff implements Iterator {
+  final MergeCursor _a, _b;
+  final Comparator _cmp;
+  Object _next;
+
+  Diff(PersistentSortedSet a, PersistentSortedSet b) {
+    _a   = new MergeCursor(a);
+    _b   = new MergeCursor(b);
+    _cmp = a._cmp;
+    if (a.root() == b.root() || (a._address != null && a._address.equals(b._address))) {
+      _a.clear();
+      _b.clear();
+    }
+    _next = step();
+  }
+
+  Object step() {
+    while (true) {
+      if (_a.over() && _b.over())
+        return null;
+
+      if (_b.over()) {
+        if (!_a.atKey()) { _a.expand(); continue; }
+        Object key = _a.key();
+        _a.advance();
+        return MapEntry.create(key, false);
+      }
+
+      if (_a.over()) {
+        if (!_b.atKey()) { _b.expand(); continue; }
+        Object key = _b.key();
+        _b.advance();
+        return MapEntry.create(key, true);
+      }
+
+      int la = _a.level(), lb = _b.level();
+      if (la > 0 && la == lb && MergeCursor.same(_a, _b)) {
+        _a.advance();
+        _b.advance();
+        continue;
+      }
+      // lower side is drained first if the higher one’s subtree is its next
+      // sibling, so that both meet at it and skip it without restoring
+      if (la > lb && _b.followedBy(_a)) {
+        if (lb > 0) { _b.expand(); continue; }
+        Object key = _b.key();
+        _b.advance();
+        return MapEntry.create(key, true);
+      }
+      if (lb > la && _a.followedBy(_b)) {
+        if (la > 0) { _a.expand(); continue; }
+        Object key = _a.key();
+        _a.advance();
+        return MapEntry.create(key, false);
+      }
+      if (la > 0 && la >= lb) { _a.expand(); continue; }
+      if (lb > 0) { _b.expand(); continue; }
+
+      Object ka = _a.key(), kb = _b.key();
+      int c = _cmp.compare(ka, kb);
+      if (c < 0) {
+        _a.advance();
+        return MapEntry.create(ka, false);
+      } else if (c > 0) {
+        _b.advance();
+        return MapEntry.create(kb, true);
+      } else {
+        _a.advance();
+        _b.advance();
+      }
+    }
+  }
+
+  public boolean hasNext() {
+    return _next != null;
+  }
+
+  public Object next() {
+    if (_next == null)
+      throw new NoSuchElementException();
+    Object res = _next;
+    _next = step();
+    return res;
+  }
+}
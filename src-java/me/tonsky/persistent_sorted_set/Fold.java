@@ -0,0 +1,36 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+import java.util.concurrent.*;
+import clojure.lang.*;
+
+// clojure.core.reducers/fold over SetSpliterator: splits until chunks
+// are <= n keys, reduces each chunk starting from (combinef),
+// then combines results left to right
+class Fold extends RecursiveTask<Object> {
+  final SetSpliterator _spliterator;
+  final long _n;
+  final IFn _combinef, _reducef;
+
+  Fold(SetSpliterator spliterator, long n, IFn combinef, IFn reducef) {
+    _spliterator = spliterator;
+    _n           = n;
+    _combinef    = combinef;
+    _reducef     = reducef;
+  }
+
+  @Override
+  protected Object compute() {
+    if (_spliterator.estimateSize() > _n) {
+      SetSpliterator prefix = _spliterator.trySplit();
+      if (prefix != null) {
+        Fold left = new Fold(prefix, _n, _combinef, _reducef);
+        left.fork();
+        Object right = compute();
+        return _combinef.invoke(left.join(), right);
+      }
+    }
+    Object acc = _spliterator.reduce(_reducef, _combinef.invoke());
+    return RT.isReduced(acc) ? ((IDeref) acc).deref() : acc;
+  }
+}
@@ -0,0 +1,11 @@
+package me.tonsky.persistent_sorted_set;
+
+// How node arrays grow while set is transient
+public enum Growth {
+    // + Settings::expandLen per reallocation
+    LINEAR,
+    // x1.5 per reallocation, at least + Settings::expandLen
+    GEOMETRIC,
+    // branchingFactor right away, never reallocates
+    FULL;
+}
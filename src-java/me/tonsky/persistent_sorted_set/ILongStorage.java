@@ -0,0 +1,20 @@
+package me.tonsky.persistent_sorted_set;
+
+/**
+ * Same as IStorage, for PersistentLongSortedSet.
+ *
+ * For node instanceof LongLeaf, store node.keys()
+ * For node instanceof LongBranch, store node.level(), node.keys() and node.addresses()
+ * Restore with LongLeaf(keys, settings) / LongBranch(level, keys, addresses, settings)
+ */
+public interface ILongStorage<Address> {
+    ALongNode<Address> restore(Address address);
+
+    default void accessed(Address address) {
+    }
+
+    Address store(ALongNode<Address> node);
+
+    default void flush(Address root) {
+    }
+}
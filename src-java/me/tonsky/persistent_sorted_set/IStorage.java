@@ -1,12 +1,14 @@
 package me.tonsky.persistent_sorted_set;
 
+import java.util.*;
+
 public interface IStorage<Key, Address> {
     /**
      * Given address, reconstruct and (optionally) cache the node.
      * Set itself would not store any strong references to nodes and
      * might request them by address during its operation many times.
      *
-     * Use ANode.restore() or Leaf(keys)/Branch(level, keys, addresses) ctors
+     * Use ANode.restore() or Leaf(keys)/Branch(level, keys, addresses, counts) ctors
      */
     ANode<Key, Address> restore(Address address);
 
@@ -17,13 +19,55 @@ public interface IStorage<Key, Address> {
     default void accessed(Address address) {
     }
 
+    /**
+     * How many not-yet-restored siblings ahead should iteration ask
+     * to prefetch(). 0 (default) disables prefetching.
+     */
+    default int prefetchSize() {
+        return 0;
+    }
+
+    /**
+     * Hint that nodes at these addresses are about to be restored,
+     * e.g. by a Seq scanning through them. Storage might start loading
+     * them in background and cache them for subsequent restore() calls.
+     * Called on the iterating thread, should not block.
+     */
+    default void prefetch(List<Address> addresses) {
+    }
+
     /**
      * Will be called after all children of node has been stored and have addresses.
      *
      * For node instanceof Leaf, store node.keys()
-     * For node instanceof Branch, store node.level(), node.keys() and node.addresses()
+     * For node instanceof Branch, store node.level(), node.keys(), node.addresses() and node.counts()
+     * (counts are optional but let count/nth/indexOf work without restoring children)
      * Generate and return new address for node
      * Return null if doesn’t need to be stored
      */
     Address store(ANode<Key, Address> node);
+
+    /**
+     * Batch version of store(), override to save on round-trips.
+     *
+     * All nodes are on the same level, leaves are stored first.
+     * All children of all nodes already have addresses.
+     * Return addresses in the same order as nodes.
+     * Might be called from multiple threads if set is stored with an Executor.
+     */
+    default List<Address> storeAll(List<ANode<Key, Address>> nodes) {
+        List<Address> addresses = new ArrayList<>(nodes.size());
+        for (ANode<Key, Address> node: nodes) {
+            addresses.add(store(node));
+        }
+        return addresses;
+    }
+
+    /**
+     * Called once at the end of PersistentSortedSet::store(), after all
+     * nodes reachable from root have been stored. Durable storages might
+     * fsync and/or remember the latest root here.
+     */
+    default void flush(Address root) {
+    }
 }
@@ -0,0 +1,136 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import clojure.lang.*;
+
+/**
+ * Serializes keys (or addresses) for NodeCodec.
+ *
+ * Keys in a node are written in order, and each one gets previous key
+ * of the same node (null for the first one), so sorted neighbours can be
+ * stored as a delta or as a suffix after shared prefix.
+ */
+public interface KeyCodec<Key> {
+  void write(ByteBuffer out, Key prev, Key key);
+
+  Key read(ByteBuffer in, Key prev);
+
+  // Zigzag varint of difference with previous key.
+  // Accepts any integer Number, reads back Long
+  KeyCodec<Number> LONG = new KeyCodec<Number>() {
+    public void write(ByteBuffer out, Number prev, Number key) {
+      NodeCodec.writeSignedVarLong(out, prev == null ? key.longValue() : key.longValue() - prev.longValue());
+    }
+
+    public Number read(ByteBuffer in, Number prev) {
+      long delta = NodeCodec.readSignedVarLong(in);
+      return prev == null ? delta : prev.longValue() + delta;
+    }
+  };
+
+  // Varint length of prefix shared with previous key (in chars),
+  // then UTF-8 bytes of the rest
+  KeyCodec<String> STRING = new KeyCodec<String>() {
+    public void write(ByteBuffer out, String prev, String key) {
+      int prefix = 0;
+      if (prev != null) {
+        int max = Math.min(prev.length(), key.length());
+        while (prefix < max && prev.charAt(prefix) == key.charAt(prefix)) {
+          ++prefix;
+        }
+        // don’t split surrogate pair
+        if (prefix > 0 && Character.isHighSurrogate(key.charAt(prefix - 1))) {
+          --prefix;
+        }
+      }
+      byte[] suffix = key.substring(prefix).getBytes(StandardCharsets.UTF_8);
+      NodeCodec.writeVarLong(out, prefix);
+      NodeCodec.writeVarLong(out, suffix.length);
+      out.put(suffix);
+    }
+
+    public String read(ByteBuffer in, String prev) {
+      int prefix = (int) NodeCodec.readVarLong(in);
+      int len = (int) NodeCodec.readVarLong(in);
+      String suffix;
+      if (in.hasArray()) {
+        suffix = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+        in.position(in.position() + len);
+      } else {
+        byte[] bytes = new byte[len];
+        in.get(bytes);
+        suffix = new String(bytes, StandardCharsets.UTF_8);
+      }
+      return prefix == 0 ? suffix : prev.substring(0, prefix).concat(suffix);
+    }
+  };
+
+  // Varint length of prefix shared with previous key, then the rest
+  KeyCodec<byte[]> BYTES = new KeyCodec<byte[]>() {
+    public void write(ByteBuffer out, byte[] prev, byte[] key) {
+      int prefix = 0;
+      if (prev != null) {
+        int max = Math.min(prev.length, key.length);
+        while (prefix < max && prev[prefix] == key[prefix]) {
+          ++prefix;
+        }
+      }
+      NodeCodec.writeVarLong(out, prefix);
+      NodeCodec.writeVarLong(out, key.length - prefix);
+      out.put(key, prefix, key.length - prefix);
+    }
+
+    public byte[] read(ByteBuffer in, byte[] prev) {
+      int prefix = (int) NodeCodec.readVarLong(in);
+      int len = (int) NodeCodec.readVarLong(in);
+      byte[] key = new byte[prefix + len];
+      if (prefix > 0) {
+        System.arraycopy(prev, 0, key, 0, prefix);
+      }
+      in.get(key, prefix, len);
+      return key;
+    }
+  };
+
+  // For addresses: two longs, no delta
+  KeyCodec<UUID> UUID = new KeyCodec<UUID>() {
+    public void write(ByteBuffer out, UUID prev, UUID key) {
+      out.putLong(key.getMostSignificantBits());
+      out.putLong(key.getLeastSignificantBits());
+    }
+
+    public UUID read(ByteBuffer in, UUID prev) {
+      return new UUID(in.getLong(), in.getLong());
+    }
+  };
+
+  /**
+   * Fixed-size tuples, written as java.util.List (e.g. Clojure vectors),
+   * read back as Clojure vectors. Each component is delta/prefix-encoded
+   * against the same component of previous tuple.
+   */
+  static KeyCodec<List> tuple(KeyCodec... codecs) {
+    return new KeyCodec<List>() {
+      @SuppressWarnings("unchecked")
+      public void write(ByteBuffer out, List prev, List key) {
+        if (key.size() != codecs.length) {
+          throw new IllegalArgumentException("Expected tuple of " + codecs.length + " elements, got: " + key);
+        }
+        for (int i = 0; i < codecs.length; ++i) {
+          codecs[i].write(out, prev == null ? null : prev.get(i), key.get(i));
+        }
+      }
+
+      @SuppressWarnings("unchecked")
+      public List read(ByteBuffer in, List prev) {
+        Object[] arr = new Object[codecs.length];
+        for (int i = 0; i < codecs.length; ++i) {
+          arr[i] = codecs[i].read(in, prev == null ? null : prev.get(i));
+        }
+        return (List) LazilyPersistentVector.createOwning(arr);
+      }
+    };
+  }
+}
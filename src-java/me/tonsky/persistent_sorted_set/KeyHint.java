@@ -0,0 +1,77 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.math.*;
+import java.util.*;
+import clojure.lang.*;
+
+/**
+ * Order-preserving long summary of a key, so that Branch search can be
+ * done mostly on a packed long[] instead of dereferencing keys and calling
+ * comparator. Must hold for all keys a, b in set:
+ *
+ *   cmp.compare(a, b) < 0  =>  hint(a) <= hint(b)
+ *
+ * Equal hints are fine (comparator resolves them), out-of-order hints
+ * return wrong results. Only used for comparators orders() accepts,
+ * so slices and seeks with custom comparators still work as before.
+ */
+public interface KeyHint {
+  long hint(Object key);
+
+  // Whether hints are consistent with cmp
+  boolean orders(Comparator cmp);
+
+  // Numeric keys in natural order. Integers in long range are exact, other
+  // numbers are truncated toward zero and clamped to long range, so order
+  // holds across Long, Double, BigInt, Ratio etc. as clojure compare sees it
+  KeyHint LONG = new KeyHint() {
+    public long hint(Object key) {
+      if (key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte)
+        return ((Number) key).longValue();
+      if (key instanceof Double || key instanceof Float)
+        return (long) ((Number) key).doubleValue(); // truncates and clamps
+      BigInteger big;
+      if (key instanceof BigInt)
+        big = ((BigInt) key).toBigInteger();
+      else if (key instanceof BigInteger)
+        big = (BigInteger) key;
+      else if (key instanceof Ratio)
+        big = ((Ratio) key).bigIntegerValue();
+      else if (key instanceof BigDecimal)
+        big = ((BigDecimal) key).toBigInteger();
+      else
+        throw new IllegalArgumentException("KeyHint.LONG expects numeric keys, got " + (key == null ? "nil" : key.getClass().getName()));
+      if (big.bitLength() < 64)
+        return big.longValue();
+      return big.signum() > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+    }
+
+    public boolean orders(Comparator cmp) {
+      return PrefixLeaf.natural(cmp);
+    }
+  };
+
+  // String keys in natural order. First 8 chars, a byte each. Char that
+  // doesn’t fit saturates to 0xFF and hides everything after it
+  KeyHint STRING = new KeyHint() {
+    public long hint(Object key) {
+      String s = (String) key;
+      int len = Math.min(8, s.length());
+      long res = 0;
+      for (int i = 0; i < len; ++i) {
+        char c = s.charAt(i);
+        if (c >= 0xFF) {
+          res = (res << 8) | 0xFF;
+          return (res << (8 * (7 - i))) ^ Long.MIN_VALUE;
+        }
+        res = (res << 8) | c;
+      }
+      // unsigned -> signed order
+      return (res << (8 * (8 - len))) ^ Long.MIN_VALUE;
+    }
+
+    public boolean orders(Comparator cmp) {
+      return PrefixLeaf.natural(cmp);
+    }
+  };
+}
@@ -0,0 +1,55 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+
+class LRUCache extends ACache {
+  final LinkedHashMap<Object, Entry> _map = new LinkedHashMap<>(16, 0.75f, true);
+
+  LRUCache(long capacity) {
+    super(capacity);
+  }
+
+  @Override
+  public Object get(Object key) {
+    Entry e = _map.get(key);
+    return e == null ? null : e.value;
+  }
+
+  @Override
+  public int put(Object key, Object value, long weight) {
+    Entry old = _map.put(key, new Entry(key, value, weight));
+    if (old != null) {
+      _weight -= old.weight;
+    }
+    _weight += weight;
+
+    int evicted = 0;
+    Iterator<Entry> iter = _map.values().iterator();
+    while (_weight > _capacity && iter.hasNext()) {
+      Entry e = iter.next();
+      iter.remove();
+      _weight -= e.weight;
+      ++evicted;
+    }
+    return evicted;
+  }
+
+  @Override
+  public void remove(Object key) {
+    Entry e = _map.remove(key);
+    if (e != null) {
+      _weight -= e.weight;
+    }
+  }
+
+  @Override
+  public int size() {
+    return _map.size();
+  }
+
+  @Override
+  public void clear() {
+    _map.clear();
+    _weight = 0;
+  }
+}
@@ -0,0 +1,172 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.nio.*;
+import java.util.*;
+import clojure.lang.*;
+
+/**
+ * Leaf restored from NodeCodec’s indexed layout. Keys stay encoded in the
+ * buffer until needed: contains/search decode only the keys they compare
+ * against (via fixed-width offsets table), everything else materializes
+ * all keys into _keys first. Branch::child materializes, lookups go
+ * through Branch::lazyChild.
+ */
+@SuppressWarnings("unchecked")
+public class LazyLeaf<Key, Address> extends Leaf<Key, Address> {
+  // null once materialized. Volatile write after _keys are filled
+  // publishes them to threads that see null here
+  volatile ByteBuffer _buf;
+  final KeyCodec<Key> _codec;
+  final int _offsets, _data;
+
+  public LazyLeaf(int len, ByteBuffer buf, int offsets, int data, KeyCodec<Key> codec, Settings settings) {
+    super(len, (Key[]) new Object[len], settings);
+    _buf     = buf;
+    _offsets = offsets;
+    _data    = data;
+    _codec   = codec;
+  }
+
+  public boolean materialized() {
+    return _buf == null;
+  }
+
+  @Override
+  public Key key(int idx) {
+    ByteBuffer buf = _buf;
+    return buf == null ? _keys[idx] : decode(buf, idx);
+  }
+
+  Key decode(ByteBuffer buf, int idx) {
+    ByteBuffer in = buf.duplicate();
+    in.position(_data + buf.getInt(_offsets + 4 * idx));
+    return _codec.read(in, null);
+  }
+
+  @Override
+  public ANode<Key, Address> materialize() {
+    if (_buf != null) {
+      synchronized (this) {
+        ByteBuffer buf = _buf;
+        if (buf != null) {
+          for (int i = 0; i < _len; ++i) {
+            _keys[i] = decode(buf, i);
+          }
+          _buf = null;
+        }
+      }
+    }
+    return this;
+  }
+
+  @Override
+  public Key minKey() {
+    return key(0);
+  }
+
+  @Override
+  public Key maxKey() {
+    return key(_len - 1);
+  }
+
+  @Override
+  public List<Key> keys() {
+    materialize();
+    return super.keys();
+  }
+
+  @Override
+  public int search(Key key, Comparator<Key> cmp) {
+    if (_buf == null) {
+      return super.search(key, cmp);
+    }
+    int low = 0, high = _len - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int d = cmp.compare(key(mid), key);
+      if (d < 0)
+        low = mid + 1;
+      else if (d > 0)
+        high = mid - 1;
+      else
+        return mid;
+    }
+    return -(low + 1);
+  }
+
+  @Override
+  public int searchFirst(Key key, Comparator<Key> cmp) {
+    if (_buf == null) {
+      return super.searchFirst(key, cmp);
+    }
+    int low = 0, high = _len;
+    while (low < high) {
+      int mid = (high + low) >>> 1;
+      int d = cmp.compare(key(mid), key);
+      if (d < 0)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  @Override
+  public int searchLast(Key key, Comparator<Key> cmp) {
+    if (_buf == null) {
+      return super.searchLast(key, cmp);
+    }
+    int low = 0, high = _len;
+    while (low < high) {
+      int mid = (high + low) >>> 1;
+      int d = cmp.compare(key(mid), key);
+      if (d <= 0)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low - 1;
+  }
+
+  @Override
+  public ANode[] add(IStorage storage, Key key, Comparator<Key> cmp, Settings settings) {
+    materialize();
+    return super.add(storage, key, cmp, settings);
+  }
+
+  @Override
+  public ANode[] append(IStorage storage, Key key, Comparator<Key> cmp, Settings settings) {
+    materialize();
+    return super.append(storage, key, cmp, settings);
+  }
+
+  @Override
+  public ANode[] remove(IStorage storage, Key key, ANode left, ANode right, Comparator<Key> cmp, Settings settings) {
+    materialize();
+    return super.remove(storage, key, left, right, cmp, settings);
+  }
+
+  @Override
+  public ANode[] addAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, Settings settings, int[] delta) {
+    materialize();
+    return super.addAll(storage, keys, from, to, cmp, settings, delta);
+  }
+
+  @Override
+  public ANode[] removeAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, Settings settings, int[] delta) {
+    materialize();
+    return super.removeAll(storage, keys, from, to, cmp, settings, delta);
+  }
+
+  @Override
+  public Address store(IStorage<Key, Address> storage) {
+    materialize();
+    return super.store(storage);
+  }
+
+  @Override
+  public String str(IStorage storage, int lvl) {
+    materialize();
+    return super.str(storage, lvl);
+  }
+}
@@ -11,7 +11,7 @@ public class Leaf<Key, Address> extends ANode<Key, Address> {
   }
 
   public Leaf(int len, Settings settings) {
-    super(len, (Key[]) new Object[ANode.newLen(len, settings)], settings);
+    super(len, (Key[]) new Object[ANode.newLen(0, len, settings)], settings);
   }
 
   public Leaf(List<Key> keys, Settings settings) {
@@ -23,6 +23,13 @@ public class Leaf<Key, Address> extends ANode<Key, Address> {
     return 0;
   }
 
+  @Override
+  public ANode<Key, Address> trim(Settings settings) {
+    if (_settings != settings || _keys.length == _len)
+      return this;
+    return new Leaf(_len, Arrays.copyOfRange(_keys, 0, _len), settings);
+  }
+
   @Override
   public int count(IStorage storage) {
     return _len;
@@ -33,6 +40,20 @@ public class Leaf<Key, Address> extends ANode<Key, Address> {
     return search(key, cmp) >= 0;
   }
 
+  @Override
+  public void containsAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, boolean[] res) {
+    int pos = 0;
+    for (int i = from; i < to && pos < _len; ++i) {
+      int idx = gallop(keys[i], pos, cmp);
+      if (idx >= 0) {
+        res[i] = true;
+        pos = idx;
+      } else {
+        pos = -idx - 1;
+      }
+    }
+  }
+
   @Override
   public ANode[] add(IStorage storage, Key key, Comparator<Key> cmp, Settings settings) {
     int idx = search(key, cmp);
@@ -57,7 +78,7 @@ public class Leaf<Key, Address> extends ANode<Key, Address> {
     }
 
     // simply adding to array
-    if (_len < _settings.branchingFactor()) {
+    if (_len < _settings.leafBranchingFactor()) {
       ANode n = new Leaf(_len + 1, settings);
       new Stitch(n._keys, 0)
         .copyAll(_keys, 0, ins)
@@ -67,7 +88,7 @@ public class Leaf<Key, Address> extends ANode<Key, Address> {
     }
 
     // splitting
-    int half1 = (_len + 1) >>> 1,
+    int half1 = _settings.splitLen(0, _len + 1),
         half2 = _len + 1 - half1;
 
     // goes to first half
@@ -93,6 +114,28 @@ public class Leaf<Key, Address> extends ANode<Key, Address> {
     return new ANode[]{n1, n2};
   }
 
+  // key is greater than all keys. When full, splits 100/0 instead of 50/50:
+  // this stays as is and key starts a new leaf, so ascending inserts pack leaves fully
+  @Override
+  public ANode[] append(IStorage storage, Key key, Comparator<Key> cmp, Settings settings) {
+    if (editable() && _len < _keys.length) {
+      _keys[_len] = key;
+      _len += 1;
+      return new ANode[]{this};
+    }
+
+    if (_len < _settings.leafBranchingFactor()) {
+      ANode n = new Leaf(_len + 1, settings);
+      ArrayUtil.copy(_keys, 0, _len, n._keys, 0);
+      n._keys[_len] = key;
+      return new ANode[]{n};
+    }
+
+    Leaf n = new Leaf(1, settings);
+    n._keys[0] = key;
+    return new ANode[]{this, n};
+  }
+
   @Override
   public ANode[] remove(IStorage storage, Key key, ANode _left, ANode _right, Comparator<Key> cmp, Settings settings) {
     Leaf left = (Leaf) _left;
@@ -105,7 +148,7 @@ public class Leaf<Key, Address> extends ANode<Key, Address> {
     int newLen = _len - 1;
 
     // nothing to merge
-    if (newLen >= _settings.minBranchingFactor() || (left == null && right == null)) {
+    if (newLen >= _settings.minLen(0) || (left == null && right == null)) {
 
       // transient, can edit in place
       if (editable()) {
@@ -125,7 +168,7 @@ public class Leaf<Key, Address> extends ANode<Key, Address> {
     }
 
     // can join with left
-    if (left != null && left._len + newLen <= _settings.branchingFactor()) {
+    if (left != null && left._len + newLen <= _settings.leafBranchingFactor()) {
       Leaf join = new Leaf(left._len + newLen, settings);
       new Stitch(join._keys, 0)
         .copyAll(left._keys, 0,       left._len)
@@ -135,7 +178,7 @@ public class Leaf<Key, Address> extends ANode<Key, Address> {
     }
 
     // can join with right
-    if (right != null && newLen + right.len() <= _settings.branchingFactor()) {
+    if (right != null && newLen + right.len() <= _settings.leafBranchingFactor()) {
       Leaf join = new Leaf(newLen + right._len, settings);
       new Stitch(join._keys, 0)
         .copyAll(_keys,       0,       idx)
@@ -219,6 +262,76 @@ public class Leaf<Key, Address> extends ANode<Key, Address> {
     throw new RuntimeException("Unreachable");
   }
 
+  @Override
+  public ANode[] addAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, Settings settings, int[] delta) {
+    Key[] merged = (Key[]) new Object[_len + to - from];
+    int len = 0, i = 0, j = from;
+    while (i < _len && j < to) {
+      int d = cmp.compare(_keys[i], keys[j]);
+      if (d < 0) {
+        merged[len++] = _keys[i++];
+      } else if (d > 0) {
+        merged[len++] = keys[j++];
+      } else { // already in set
+        merged[len++] = _keys[i++];
+        ++j;
+      }
+    }
+    while (i < _len) merged[len++] = _keys[i++];
+    while (j < to)   merged[len++] = keys[j++];
+    if (len == _len) // all already in set
+      return PersistentSortedSet.UNCHANGED;
+    delta[0] += len - _len;
+    return merged(merged, len, settings);
+  }
+
+  @Override
+  public ANode[] removeAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, Settings settings, int[] delta) {
+    Key[] left = (Key[]) new Object[_len];
+    int len = 0, i = 0, j = from;
+    while (i < _len && j < to) {
+      int d = cmp.compare(_keys[i], keys[j]);
+      if (d < 0) {
+        left[len++] = _keys[i++];
+      } else if (d > 0) {
+        ++j;
+      } else {
+        ++i;
+        ++j;
+      }
+    }
+    while (i < _len) left[len++] = _keys[i++];
+    if (len == _len)
+      return PersistentSortedSet.UNCHANGED;
+    delta[0] += len - _len;
+    return merged(left, len, settings);
+  }
+
+  // Result of addAll/removeAll. Editable leaf takes keys in place if they fit
+  protected ANode[] merged(Object[] keys, int len, Settings settings) {
+    if (editable() && 0 < len && len <= _keys.length && len <= _settings.leafBranchingFactor()) {
+      ArrayUtil.copy(keys, 0, len, _keys, 0);
+      if (len < _len)
+        Arrays.fill(_keys, len, _len, null);
+      _len = len;
+      return new ANode[]{this}; // maxKey needs updating
+    }
+    return pack(keys, len, settings);
+  }
+
+  // Splits keys[0 ... len-1] evenly between as few leaves as possible
+  public static ANode[] pack(Object[] keys, int len, Settings settings) {
+    int bf = settings.leafBranchingFactor();
+    int parts = (len + bf - 1) / bf;
+    ANode[] res = new ANode[parts];
+    for (int p = 0; p < parts; ++p) {
+      int start = (int) ((long) len * p / parts),
+          end   = (int) ((long) len * (p + 1) / parts);
+      res[p] = new Leaf(end - start, Arrays.copyOfRange(keys, start, end, Object[].class), settings);
+    }
+    return res;
+  }
+
   @Override
   public void walkAddresses(IStorage storage, IFn onAddress) {
     // noop
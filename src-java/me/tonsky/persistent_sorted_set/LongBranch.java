@@ -0,0 +1,288 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+import clojure.lang.*;
+
+// Same as Branch, but with primitive long keys. Children states are the same:
+// not stored (address null, child ALongNode), stored (address + reference),
+// not restored yet (address, child null)
+@SuppressWarnings("unchecked")
+public class LongBranch<Address> extends ALongNode<Address> {
+  // 1+ for branches
+  public final int _level;
+
+  // Nullable, null == no children have addresses
+  // Only valid [0 ... _len-1]
+  public Address[] _addresses;
+
+  // Nullable, null == no children in memory
+  // Only valid [0 ... _len-1]
+  public Object[] _children;
+
+  public LongBranch(int level, int len, long[] keys, Address[] addresses, Object[] children, Settings settings) {
+    super(len, keys, settings);
+    assert level >= 1;
+    assert addresses == null || addresses.length >= len;
+    assert children == null || children.length >= len;
+
+    _level     = level;
+    _addresses = addresses;
+    _children  = children;
+  }
+
+  public LongBranch(int level, long[] keys, List<Address> addresses, Settings settings) {
+    this(level, keys.length, keys, (Address[]) addresses.toArray(), null, settings);
+  }
+
+  // Same as Branch::trim
+  @Override
+  public ALongNode<Address> trim(Settings settings) {
+    if (_settings != settings)
+      return this;
+    if (_children != null) {
+      for (int i = 0; i < _len; ++i) {
+        if (_children[i] instanceof ALongNode && address(i) == null)
+          _children[i] = ((ALongNode) _children[i]).trim(settings);
+      }
+    }
+    if (_keys.length == _len
+        && (_addresses == null || _addresses.length == _len)
+        && (_children == null || _children.length == _len))
+      return this;
+    return new LongBranch(_level, _len,
+      Arrays.copyOfRange(_keys, 0, _len),
+      _addresses == null ? null : Arrays.copyOfRange(_addresses, 0, _len),
+      _children == null ? null : Arrays.copyOfRange(_children, 0, _len),
+      settings);
+  }
+
+  public List<Address> addresses() {
+    if (_addresses == null) {
+      return (List<Address>) Arrays.asList(new Object[_len]);
+    } else if (_addresses.length == _len) {
+      return Arrays.asList(_addresses);
+    } else {
+      return Arrays.asList(Arrays.copyOfRange(_addresses, 0, _len));
+    }
+  }
+
+  public Address address(int idx) {
+    return _addresses == null ? null : _addresses[idx];
+  }
+
+  @Override
+  public int level() {
+    return _level;
+  }
+
+  public ALongNode<Address> child(ILongStorage storage, int idx) {
+    assert 0 <= idx && idx < _len;
+
+    ALongNode child = null;
+    if (_children != null) {
+      child = (ALongNode) _settings.readReference(_children[idx]);
+    }
+
+    if (child == null) {
+      assert _addresses[idx] != null;
+      child = storage.restore(_addresses[idx]);
+      if (_children == null) {
+        _children = new Object[_keys.length];
+      }
+      _children[idx] = _settings.makeReference(child);
+    } else if (_addresses != null && _addresses[idx] != null) {
+      storage.accessed(_addresses[idx]);
+    }
+    return child;
+  }
+
+  @Override
+  public int count(ILongStorage storage) {
+    int count = 0;
+    for (int i = 0; i < _len; ++i) {
+      count += child(storage, i).count(storage);
+    }
+    return count;
+  }
+
+  @Override
+  public boolean contains(ILongStorage storage, long key) {
+    int idx = search(key);
+    if (idx >= 0) return true;
+    int ins = -idx - 1;
+    if (ins == _len) return false;
+    return child(storage, ins).contains(storage, key);
+  }
+
+  @Override
+  public ALongNode[] add(ILongStorage storage, long key, Settings settings) {
+    int idx = search(key);
+    if (idx >= 0) // already in set
+      return PersistentLongSortedSet.UNCHANGED;
+
+    int ins = -idx - 1;
+    if (ins == _len) ins = _len - 1;
+    ALongNode[] nodes = child(storage, ins).add(storage, key, settings);
+
+    if (PersistentLongSortedSet.UNCHANGED == nodes || PersistentLongSortedSet.EARLY_EXIT == nodes)
+      return nodes;
+
+    // same len, editable
+    if (1 == nodes.length && editable()) {
+      ALongNode node = nodes[0];
+      _keys[ins] = node.maxKey();
+      if (_addresses != null) _addresses[ins] = null;
+      if (_children == null) _children = new Object[_keys.length];
+      _children[ins] = node;
+      if (ins == _len - 1)
+        return new ALongNode[]{this}; // update maxKey
+      return PersistentLongSortedSet.EARLY_EXIT;
+    }
+
+    return replace(ins, ins + 1, nodes, new Object[nodes.length], settings);
+  }
+
+  @Override
+  public ALongNode[] remove(ILongStorage storage, long key, ALongNode _left, ALongNode _right, Settings settings) {
+    LongBranch left = (LongBranch) _left;
+    LongBranch right = (LongBranch) _right;
+
+    int idx = searchFirst(key);
+    if (idx == _len) // not in set
+      return PersistentLongSortedSet.UNCHANGED;
+
+    ALongNode leftChild  = idx > 0        ? child(storage, idx - 1) : null,
+              rightChild = idx < _len - 1 ? child(storage, idx + 1) : null;
+    int leftChildLen  = leftChild  == null ? -1 : leftChild._len,
+        rightChildLen = rightChild == null ? -1 : rightChild._len;
+    ALongNode[] nodes = child(storage, idx).remove(storage, key, leftChild, rightChild, settings);
+
+    if (PersistentLongSortedSet.UNCHANGED == nodes || PersistentLongSortedSet.EARLY_EXIT == nodes)
+      return nodes;
+
+    // nodes == [left, center, right], siblings are null if merged into center
+    ALongNode[] replacement = new ALongNode[3];
+    Object[] addresses = new Object[3];
+    int len = 0;
+    if (nodes[0] != null) {
+      addresses[len] = nodes[0] == leftChild && nodes[0]._len == leftChildLen ? address(idx - 1) : null;
+      replacement[len++] = nodes[0];
+    }
+    replacement[len++] = nodes[1];
+    if (nodes[2] != null) {
+      addresses[len] = nodes[2] == rightChild && nodes[2]._len == rightChildLen ? address(idx + 1) : null;
+      replacement[len++] = nodes[2];
+    }
+    int from = leftChild  != null ? idx - 1 : idx,
+        to   = rightChild != null ? idx + 2 : idx + 1;
+    LongBranch center = (LongBranch) replace(from, to, Arrays.copyOf(replacement, len), addresses, settings)[0];
+
+    // no rebalance needed
+    if (center._len >= _settings.minLen(_level) || (left == null && right == null))
+      return new ALongNode[]{left, center, right};
+
+    // can join with left
+    if (left != null && left._len + center._len <= _settings.branchingFactor())
+      return new ALongNode[]{null, concat(left, center, settings), right};
+
+    // can join with right
+    if (right != null && center._len + right._len <= _settings.branchingFactor())
+      return new ALongNode[]{left, concat(center, right, settings), null};
+
+    // borrow from left
+    if (left != null && (right == null || left._len >= right._len)) {
+      ALongNode[] halves = concat(left, center, settings).split(settings);
+      return new ALongNode[]{halves[0], halves[1], right};
+    }
+
+    // borrow from right
+    ALongNode[] halves = concat(center, right, settings).split(settings);
+    return new ALongNode[]{left, halves[0], halves[1]};
+  }
+
+  // Replaces children [from, to) with nodes (addresses[i] is address of nodes[i] or null).
+  // Returns one branch, or two if it overflows
+  ALongNode[] replace(int from, int to, ALongNode[] nodes, Object[] addresses, Settings settings) {
+    int len = _len - (to - from) + nodes.length;
+    long[] newKeys = new long[len];
+    Object[] newAddresses = new Object[len];
+    Object[] newChildren = new Object[len];
+    Stitch ks = new Stitch(newKeys, 0).copyAll(_keys, 0, from);
+    Stitch as = new Stitch(newAddresses, 0).copyAll(_addresses, 0, from);
+    Stitch cs = new Stitch(newChildren, 0).copyAll(_children, 0, from);
+    for (int i = 0; i < nodes.length; ++i) {
+      ks.copyOne(nodes[i].maxKey());
+      as.copyOne(addresses[i]);
+      cs.copyOne(nodes[i]);
+    }
+    ks.copyAll(_keys, to, _len);
+    as.copyAll(_addresses, to, _len);
+    cs.copyAll(_children, to, _len);
+    LongBranch branch = new LongBranch(_level, len, newKeys, (Address[]) newAddresses, newChildren, settings);
+    return len <= _settings.branchingFactor() ? new ALongNode[]{branch} : branch.split(_settings.splitLen(_level, len), settings);
+  }
+
+  static LongBranch concat(LongBranch a, LongBranch b, Settings settings) {
+    int len = a._len + b._len;
+    long[] keys = new long[len];
+    Object[] addresses = new Object[len];
+    Object[] children = new Object[len];
+    new Stitch(keys, 0).copyAll(a._keys, 0, a._len).copyAll(b._keys, 0, b._len);
+    new Stitch(addresses, 0).copyAll(a._addresses, 0, a._len).copyAll(b._addresses, 0, b._len);
+    new Stitch(children, 0).copyAll(a._children, 0, a._len).copyAll(b._children, 0, b._len);
+    return new LongBranch(a._level, len, keys, addresses, children, settings);
+  }
+
+  ALongNode[] split(Settings settings) {
+    return split(_len >>> 1, settings);
+  }
+
+  ALongNode[] split(int half1, Settings settings) {
+    return new ALongNode[]{slice(0, half1, settings), slice(half1, _len, settings)};
+  }
+
+  LongBranch slice(int from, int to, Settings settings) {
+    return new LongBranch(_level, to - from,
+      Arrays.copyOfRange(_keys, from, to),
+      _addresses == null ? null : (Address[]) Arrays.copyOfRange(_addresses, from, to, Object[].class),
+      _children == null ? null : Arrays.copyOfRange(_children, from, to, Object[].class),
+      settings);
+  }
+
+  @Override
+  public void walkAddresses(ILongStorage storage, IFn onAddress) {
+    for (int i = 0; i < _len; ++i) {
+      Address address = address(i);
+      if (address != null && !RT.booleanCast(onAddress.invoke(address)))
+        continue;
+      if (_level > 1)
+        child(storage, i).walkAddresses(storage, onAddress);
+    }
+  }
+
+  @Override
+  public Address store(ILongStorage<Address> storage) {
+    if (_addresses == null)
+      _addresses = (Address[]) new Object[_keys.length];
+    for (int i = 0; i < _len; ++i) {
+      if (_addresses[i] == null) {
+        ALongNode<Address> child = (ALongNode<Address>) _children[i];
+        _addresses[i] = child.store(storage);
+        _children[i] = _settings.makeReference(child);
+      }
+    }
+    return storage.store(this);
+  }
+
+  @Override
+  public String str(ILongStorage storage, int lvl) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < _len; ++i) {
+      sb.append("\n");
+      for (int j = 0; j < lvl; ++j)
+        sb.append("| ");
+      sb.append(_keys[i] + ": " + child(storage, i).str(storage, lvl + 1));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,95 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+
+// Iterates over keys in [from, to] without boxing. Keeps path
+// from root to current leaf, so moving to the next leaf is O(1) amortized
+@SuppressWarnings("unchecked")
+public class LongIter implements PrimitiveIterator.OfLong {
+  final ILongStorage _storage;
+  final long _from, _to;
+  final boolean _asc;
+  // _path[0] == root, _path[depth] == current leaf, _idxs are positions in each
+  final ALongNode[] _path;
+  final int[] _idxs;
+  ALongNode _leaf;
+  int _idx;
+
+  public LongIter(PersistentLongSortedSet set, long from, long to, boolean asc) {
+    _storage = set._storage;
+    _from = from;
+    _to = to;
+    _asc = asc;
+    ALongNode node = set.root();
+    int depth = node.level() + 1;
+    _path = new ALongNode[depth];
+    _idxs = new int[depth];
+    if (node._len == 0 || from > to) {
+      return;
+    }
+    long key = asc ? from : to;
+    for (int level = 0; level < depth; ++level) {
+      _path[level] = node;
+      if (node instanceof LongBranch) {
+        int idx = node.searchFirst(key);
+        if (idx == node._len) {
+          if (asc) return; // all keys < from
+          idx = node._len - 1;
+        }
+        _idxs[level] = idx;
+        node = ((LongBranch) node).child(_storage, idx);
+      } else {
+        _leaf = node;
+        _idx = asc ? node.searchFirst(key) : node.searchLast(key);
+        _idxs[level] = _idx;
+      }
+    }
+    if (_idx < 0 || _idx >= _leaf._len) {
+      nextLeaf();
+    }
+  }
+
+  void nextLeaf() {
+    int level = _path.length - 2;
+    while (level >= 0) {
+      int idx = _idxs[level] + (_asc ? 1 : -1);
+      if (idx >= 0 && idx < _path[level]._len) {
+        _idxs[level] = idx;
+        break;
+      }
+      --level;
+    }
+    if (level < 0) {
+      _leaf = null;
+      return;
+    }
+    for (; level < _path.length - 1; ++level) {
+      ALongNode child = ((LongBranch) _path[level]).child(_storage, _idxs[level]);
+      _path[level + 1] = child;
+      _idxs[level + 1] = _asc ? 0 : child._len - 1;
+    }
+    _leaf = _path[_path.length - 1];
+    _idx = _idxs[_path.length - 1];
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (_leaf == null) {
+      return false;
+    }
+    long key = _leaf._keys[_idx];
+    return _asc ? key <= _to : key >= _from;
+  }
+
+  @Override
+  public long nextLong() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    long key = _leaf._keys[_idx];
+    if (_asc ? ++_idx == _leaf._len : --_idx < 0) {
+      nextLeaf();
+    }
+    return key;
+  }
+}
@@ -0,0 +1,195 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+import clojure.lang.*;
+
+@SuppressWarnings("unchecked")
+public class LongLeaf<Address> extends ALongNode<Address> {
+  public LongLeaf(int len, long[] keys, Settings settings) {
+    super(len, keys, settings);
+  }
+
+  public LongLeaf(int len, Settings settings) {
+    super(len, new long[newLen(0, len, settings)], settings);
+  }
+
+  public LongLeaf(long[] keys, Settings settings) {
+    this(keys.length, keys, settings);
+  }
+
+  @Override
+  public ALongNode<Address> trim(Settings settings) {
+    if (_settings != settings || _keys.length == _len)
+      return this;
+    return new LongLeaf(_len, Arrays.copyOfRange(_keys, 0, _len), settings);
+  }
+
+  @Override
+  public int level() {
+    return 0;
+  }
+
+  @Override
+  public int count(ILongStorage storage) {
+    return _len;
+  }
+
+  @Override
+  public boolean contains(ILongStorage storage, long key) {
+    return search(key) >= 0;
+  }
+
+  @Override
+  public ALongNode[] add(ILongStorage storage, long key, Settings settings) {
+    int idx = search(key);
+    if (idx >= 0) // already in set
+      return PersistentLongSortedSet.UNCHANGED;
+
+    int ins = -idx - 1;
+    assert 0 <= ins && ins <= _len;
+
+    // can modify array in place
+    if (editable() && _len < _keys.length) {
+      System.arraycopy(_keys, ins, _keys, ins + 1, _len - ins);
+      _keys[ins] = key;
+      _len += 1;
+      if (ins == _len - 1)
+        return new ALongNode[]{this}; // maxKey needs updating
+      return PersistentLongSortedSet.EARLY_EXIT;
+    }
+
+    // simply adding to array
+    if (_len < _settings.leafBranchingFactor()) {
+      LongLeaf n = new LongLeaf(_len + 1, settings);
+      new Stitch(n._keys, 0)
+        .copyAll(_keys, 0, ins)
+        .copyOne(key)
+        .copyAll(_keys, ins, _len);
+      return new ALongNode[]{n};
+    }
+
+    // splitting
+    int half1 = _settings.splitLen(0, _len + 1),
+        half2 = _len + 1 - half1;
+    LongLeaf n1 = new LongLeaf(half1, settings),
+             n2 = new LongLeaf(half2, settings);
+
+    // goes to first half
+    if (ins < half1) {
+      new Stitch(n1._keys, 0)
+        .copyAll(_keys, 0, ins)
+        .copyOne(key)
+        .copyAll(_keys, ins, half1 - 1);
+      System.arraycopy(_keys, half1 - 1, n2._keys, 0, half2);
+      return new ALongNode[]{n1, n2};
+    }
+
+    // copy first, insert to second
+    System.arraycopy(_keys, 0, n1._keys, 0, half1);
+    new Stitch(n2._keys, 0)
+      .copyAll(_keys, half1, ins)
+      .copyOne(key)
+      .copyAll(_keys, ins, _len);
+    return new ALongNode[]{n1, n2};
+  }
+
+  @Override
+  public ALongNode[] remove(ILongStorage storage, long key, ALongNode _left, ALongNode _right, Settings settings) {
+    LongLeaf left = (LongLeaf) _left;
+    LongLeaf right = (LongLeaf) _right;
+
+    int idx = search(key);
+    if (idx < 0) // not in set
+      return PersistentLongSortedSet.UNCHANGED;
+
+    int newLen = _len - 1;
+
+    // nothing to merge
+    if (newLen >= _settings.minLen(0) || (left == null && right == null)) {
+
+      // transient, can edit in place
+      if (editable()) {
+        System.arraycopy(_keys, idx + 1, _keys, idx, _len - idx - 1);
+        _len = newLen;
+        if (idx == newLen) // removed last, need to signal new maxKey
+          return new ALongNode[]{left, this, right};
+        return PersistentLongSortedSet.EARLY_EXIT;
+      }
+
+      LongLeaf center = new LongLeaf(newLen, settings);
+      new Stitch(center._keys, 0)
+        .copyAll(_keys, 0, idx)
+        .copyAll(_keys, idx + 1, _len);
+      return new ALongNode[]{left, center, right};
+    }
+
+    // can join with left
+    if (left != null && left._len + newLen <= _settings.leafBranchingFactor()) {
+      LongLeaf join = new LongLeaf(left._len + newLen, settings);
+      new Stitch(join._keys, 0)
+        .copyAll(left._keys, 0,       left._len)
+        .copyAll(_keys,      0,       idx)
+        .copyAll(_keys,      idx + 1, _len);
+      return new ALongNode[]{null, join, right};
+    }
+
+    // can join with right
+    if (right != null && newLen + right._len <= _settings.leafBranchingFactor()) {
+      LongLeaf join = new LongLeaf(newLen + right._len, settings);
+      new Stitch(join._keys, 0)
+        .copyAll(_keys,       0,       idx)
+        .copyAll(_keys,       idx + 1, _len)
+        .copyAll(right._keys, 0,       right._len);
+      return new ALongNode[]{left, join, null};
+    }
+
+    // borrow from left
+    if (left != null && (right == null || left._len >= right._len)) {
+      int totalLen     = left._len + newLen,
+          newLeftLen   = totalLen >>> 1,
+          newCenterLen = totalLen - newLeftLen;
+      LongLeaf newLeft   = new LongLeaf(newLeftLen, settings),
+               newCenter = new LongLeaf(newCenterLen, settings);
+      System.arraycopy(left._keys, 0, newLeft._keys, 0, newLeftLen);
+      new Stitch(newCenter._keys, 0)
+        .copyAll(left._keys, newLeftLen, left._len)
+        .copyAll(_keys,      0,          idx)
+        .copyAll(_keys,      idx + 1,    _len);
+      return new ALongNode[]{newLeft, newCenter, right};
+    }
+
+    // borrow from right
+    int totalLen     = newLen + right._len,
+        newCenterLen = totalLen >>> 1,
+        newRightLen  = totalLen - newCenterLen,
+        rightHead    = right._len - newRightLen;
+    LongLeaf newCenter = new LongLeaf(newCenterLen, settings),
+             newRight  = new LongLeaf(newRightLen, settings);
+    new Stitch(newCenter._keys, 0)
+      .copyAll(_keys,       0,       idx)
+      .copyAll(_keys,       idx + 1, _len)
+      .copyAll(right._keys, 0,       rightHead);
+    System.arraycopy(right._keys, rightHead, newRight._keys, 0, newRightLen);
+    return new ALongNode[]{left, newCenter, newRight};
+  }
+
+  @Override
+  public void walkAddresses(ILongStorage storage, IFn onAddress) {
+    // noop
+  }
+
+  @Override
+  public Address store(ILongStorage<Address> storage) {
+    return storage.store(this);
+  }
+
+  @Override
+  public String str(ILongStorage storage, int lvl) {
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < _len; ++i) {
+      if (i > 0) sb.append(" ");
+      sb.append(_keys[i]);
+    }
+    return sb.append("}").toString();
+  }
+}
@@ -0,0 +1,407 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Append-only IStorage on top of segment files in a directory.
+ *
+ * Nodes are encoded with NodeCodec and appended to the last segment as
+ * [int length][bytes]. Address is (segment index << 31) | offset in segment file.
+ * Restore decodes straight from a MappedByteBuffer, without copying.
+ *
+ * flush() writes root address to `root` file (and fsyncs everything first
+ * if fsync == true), so root() can be used to reopen the set later.
+ *
+ * Storage never overwrites anything, use compact() to reclaim space taken
+ * by nodes of old versions.
+ */
+@SuppressWarnings("unchecked")
+public class MappedFileStorage<Key> implements IStorage<Key, Long>, Closeable {
+  public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+  static final int OFFSET_BITS = 31;
+
+  public final Path _dir;
+  public final NodeCodec<Key, Long> _codec;
+  public final int _segmentSize;
+  public final boolean _fsync;
+  final ConcurrentHashMap<Integer, Segment> _segments = new ConcurrentHashMap<>();
+  // Guarded by this
+  Segment _active;
+  final Set<Segment> _unsynced = new HashSet<>();
+
+  static class Segment {
+    final int index;
+    final Path path;
+    final FileChannel channel;
+    long size;
+    volatile MappedByteBuffer map;
+
+    Segment(int index, Path path) throws IOException {
+      this.index = index;
+      this.path = path;
+      this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.size = channel.size();
+    }
+
+    // Mapping is extended lazily when reading past its end
+    ByteBuffer map(long end) throws IOException {
+      MappedByteBuffer m = map;
+      if (m == null || m.limit() < end) {
+        synchronized (this) {
+          m = map;
+          if (m == null || m.limit() < end) {
+            m = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (m.limit() < end) {
+              throw new IllegalArgumentException("Offset " + end + " is past the end of " + path);
+            }
+            map = m;
+          }
+        }
+      }
+      return m.duplicate();
+    }
+  }
+
+  public MappedFileStorage(Path dir, KeyCodec<Key> keyCodec, Settings settings) {
+    this(dir, keyCodec, settings, DEFAULT_SEGMENT_SIZE, true);
+  }
+
+  public MappedFileStorage(Path dir, KeyCodec<Key> keyCodec, Settings settings, int segmentSize, boolean fsync) {
+    this(dir, new NodeCodec<>(keyCodec, (KeyCodec<Long>) (KeyCodec) KeyCodec.LONG, settings), segmentSize, fsync);
+  }
+
+  /**
+   * codec must use KeyCodec.LONG for addresses. Pass codec with indexedLeaves
+   * to get LazyLeaf reading keys straight from mapped memory
+   */
+  public MappedFileStorage(Path dir, NodeCodec<Key, Long> codec, int segmentSize, boolean fsync) {
+    _dir = dir;
+    _codec = codec;
+    _segmentSize = segmentSize;
+    _fsync = fsync;
+    try {
+      Files.createDirectories(dir);
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*")) {
+        for (Path path: files) {
+          int index = Integer.parseInt(path.getFileName().toString().substring("segment-".length()));
+          Segment segment = new Segment(index, path);
+          _segments.put(index, segment);
+          if (_active == null || _active.index < index) {
+            _active = segment;
+          }
+        }
+      }
+      if (_active == null) {
+        roll();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  Path segmentPath(int index) {
+    return _dir.resolve(String.format("segment-%08d", index));
+  }
+
+  // Guarded by this
+  void roll() throws IOException {
+    int index = _active == null ? 0 : _active.index + 1;
+    _active = new Segment(index, segmentPath(index));
+    _segments.put(index, _active);
+  }
+
+  static int segmentIndex(long address) {
+    return (int) (address >>> OFFSET_BITS);
+  }
+
+  static int offset(long address) {
+    return (int) (address & ((1L << OFFSET_BITS) - 1));
+  }
+
+  ByteBuffer record(long address) throws IOException {
+    Segment segment = _segments.get(segmentIndex(address));
+    if (segment == null) {
+      throw new IllegalArgumentException("Address " + address + " points to a deleted segment");
+    }
+    int offset = offset(address);
+    ByteBuffer buf = segment.map(offset + 4);
+    int len = buf.getInt(offset);
+    if (buf.limit() < offset + 4 + len) {
+      buf = segment.map(offset + 4 + len);
+    }
+    buf.position(offset + 4).limit(offset + 4 + len);
+    return buf;
+  }
+
+  @Override
+  public ANode<Key, Long> restore(Long address) {
+    try {
+      return _codec.decode(record(address));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public Long store(ANode<Key, Long> node) {
+    return storeAll(Collections.singletonList(node)).get(0);
+  }
+
+  // Whole batch goes into one gathering write per segment
+  @Override
+  public synchronized List<Long> storeAll(List<ANode<Key, Long>> nodes) {
+    try {
+      List<Long> addresses = new ArrayList<>(nodes.size());
+      List<ByteBuffer> pending = new ArrayList<>();
+      long position = _active.size;
+      for (ANode<Key, Long> node: nodes) {
+        ByteBuffer body = _codec.encode(node);
+        int len = 4 + body.remaining();
+        if (len > _segmentSize) {
+          throw new IllegalArgumentException("Node of " + len + " bytes doesn’t fit into segment of " + _segmentSize + " bytes");
+        }
+        if (position + len > _segmentSize) {
+          write(pending);
+          roll();
+          position = 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(4).putInt(0, body.remaining());
+        pending.add(header);
+        pending.add(body);
+        addresses.add(((long) _active.index << OFFSET_BITS) | position);
+        position += len;
+      }
+      write(pending);
+      return addresses;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Guarded by this
+  void write(List<ByteBuffer> buffers) throws IOException {
+    if (buffers.isEmpty()) {
+      return;
+    }
+    ByteBuffer[] arr = buffers.toArray(new ByteBuffer[buffers.size()]);
+    long total = 0;
+    for (ByteBuffer buf: arr) {
+      total += buf.remaining();
+    }
+    FileChannel channel = _active.channel;
+    channel.position(_active.size);
+    for (long written = 0; written < total; ) {
+      written += channel.write(arr);
+    }
+    _active.size += total;
+    _unsynced.add(_active);
+    buffers.clear();
+  }
+
+  // Guarded by this
+  void sync() throws IOException {
+    if (_fsync) {
+      for (Segment segment: _unsynced) {
+        segment.channel.force(false);
+      }
+      _unsynced.clear();
+    }
+  }
+
+  @Override
+  public synchronized void flush(Long root) {
+    try {
+      sync();
+      Path tmp = _dir.resolve("root.tmp");
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer buf = ByteBuffer.allocate(8).putLong(0, root);
+        while (buf.hasRemaining()) {
+          channel.write(buf);
+        }
+        if (_fsync) {
+          channel.force(false);
+        }
+      }
+      Files.move(tmp, _dir.resolve("root"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Address passed to the last flush(), or null
+   */
+  public Long root() {
+    Path path = _dir.resolve("root");
+    if (!Files.exists(path)) {
+      return null;
+    }
+    try {
+      return ByteBuffer.wrap(Files.readAllBytes(path)).getLong();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public synchronized long sizeOnDisk() {
+    long size = 0;
+    for (Segment segment: _segments.values()) {
+      size += segment.size;
+    }
+    return size;
+  }
+
+  public int segmentCount() {
+    return _segments.size();
+  }
+
+  /**
+   * Reclaims space taken by nodes not reachable from roots.
+   *
+   * Mark walks live branches from roots (leaves are never restored) and
+   * remembers their children addresses. Segments where less than
+   * minLiveRatio of bytes are live get evacuated: their live nodes are
+   * copied to a fresh segment together with all their ancestors, since
+   * children addresses change. Which subtrees reach evacuated segments is
+   * known from marked addresses, so only nodes being copied are restored.
+   * Evacuated segments are deleted afterwards. Returns new addresses of
+   * roots, in the same order. Sets and addresses obtained before compaction
+   * might point into deleted segments and must not be used afterwards.
+   */
+  public synchronized long[] compact(long[] roots, double minLiveRatio) {
+    try {
+      sync();
+      roll();
+
+      // Mark
+      Set<Long> live = new HashSet<>();
+      Map<Long, long[]> children = new HashMap<>();
+      for (long root: roots) {
+        mark(root, live, children);
+      }
+
+      // Pick segments to evacuate
+      Map<Integer, Long> liveBytes = new HashMap<>();
+      for (long address: live) {
+        int len = record(address).remaining();
+        liveBytes.merge(segmentIndex(address), 4L + len, Long::sum);
+      }
+      Set<Integer> evacuate = new HashSet<>();
+      for (Segment segment: _segments.values()) {
+        if (segment != _active && liveBytes.getOrDefault(segment.index, 0L) < minLiveRatio * segment.size) {
+          evacuate.add(segment.index);
+        }
+      }
+
+      // Copy
+      Map<Long, Long> moved = new HashMap<>();
+      long[] newRoots = new long[roots.length];
+      for (int i = 0; i < roots.length; ++i) {
+        newRoots[i] = relocate(roots[i], evacuate, children, moved);
+      }
+      sync();
+      Long current = root();
+      for (int i = 0; i < roots.length; ++i) {
+        if (current != null && current == roots[i] && newRoots[i] != roots[i]) {
+          flush(newRoots[i]);
+          break;
+        }
+      }
+
+      // Sweep
+      for (int index: evacuate) {
+        Segment segment = _segments.remove(index);
+        _unsynced.remove(segment);
+        segment.map = null;
+        segment.channel.close();
+        Files.delete(segment.path);
+      }
+      return newRoots;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public long[] compact(long[] roots) {
+    return compact(roots, 0.5);
+  }
+
+  // Collects live addresses and children addresses of live branches. Leaves
+  // are never restored, branches once, shared subtrees are walked once
+  void mark(long address, Set<Long> live, Map<Long, long[]> children) {
+    if (!live.add(address)) {
+      return;
+    }
+    ANode<Key, Long> node = restore(address);
+    if (node instanceof Branch) {
+      Object[] addresses = ((Branch) node)._addresses;
+      long[] childAddresses = new long[node._len];
+      for (int i = 0; i < node._len; ++i) {
+        childAddresses[i] = (Long) addresses[i];
+      }
+      children.put(address, childAddresses);
+      for (long child: childAddresses) {
+        if (node.level() > 1) {
+          mark(child, live, children);
+        } else {
+          live.add(child);
+        }
+      }
+    }
+  }
+
+  // Post-order: copy node if it lives in evacuated segment or any child moved.
+  // Which subtrees reach evacuated segments is decided from segment indices
+  // and children collected by mark(), so only nodes being copied are restored
+  long relocate(long address, Set<Integer> evacuate, Map<Long, long[]> children, Map<Long, Long> moved) {
+    Long done = moved.get(address);
+    if (done != null) {
+      return done;
+    }
+    boolean copy = evacuate.contains(segmentIndex(address));
+    long[] childAddresses = children.get(address);
+    long[] newChildAddresses = null;
+    if (childAddresses != null) {
+      for (int i = 0; i < childAddresses.length; ++i) {
+        long newChild = relocate(childAddresses[i], evacuate, children, moved);
+        if (newChild != childAddresses[i]) {
+          if (newChildAddresses == null) {
+            newChildAddresses = childAddresses.clone();
+          }
+          newChildAddresses[i] = newChild;
+          copy = true;
+        }
+      }
+    }
+    long result = address;
+    if (copy) {
+      ANode<Key, Long> node = restore(address);
+      if (newChildAddresses != null) {
+        Object[] addresses = ((Branch) node)._addresses;
+        for (int i = 0; i < newChildAddresses.length; ++i) {
+          addresses[i] = newChildAddresses[i];
+        }
+      }
+      result = storeAll(Collections.singletonList(node)).get(0);
+    }
+    moved.put(address, result);
+    return result;
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      for (Segment segment: _segments.values()) {
+        segment.map = null;
+        segment.channel.close();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+
+// Position in a tree that doesn’t restore more than it has to. When top node
+// is a leaf, points to a key. When top node is a branch, points to the start
+// of its idx-th child, which isn’t restored until expand()
+@SuppressWarnings("unchecked")
+class MergeCursor {
+  final IStorage _storage;
+  final ArrayList<ANode> _nodes = new ArrayList<>();
+  final ArrayList<Integer> _idxs = new ArrayList<>();
+
+  MergeCursor(PersistentSortedSet set) {
+    _storage = set._storage;
+    ANode root = set.root();
+    if (root._len > 0) {
+      _nodes.add(root);
+      _idxs.add(0);
+    }
+  }
+
+  boolean over() {
+    return _nodes.isEmpty();
+  }
+
+  ANode node() {
+    return _nodes.get(_nodes.size() - 1);
+  }
+
+  int idx() {
+    return _idxs.get(_idxs.size() - 1);
+  }
+
+  boolean atKey() {
+    return !(node() instanceof Branch);
+  }
+
+  Object key() {
+    return node()._keys[idx()];
+  }
+
+  // 0 when at key, 1 when at leaf, 2+ when at branch
+  int level() {
+    return atKey() ? 0 : node().level();
+  }
+
+  // Max key of current subtree (or current key)
+  Object maxKey() {
+    return node()._keys[idx()];
+  }
+
+  // Min key of current subtree (or current key). Restores leftmost path, but doesn’t move
+  Object minKey() {
+    if (atKey())
+      return key();
+    ANode node = ((Branch) node()).lazyChild(_storage, idx());
+    while (node instanceof Branch)
+      node = ((Branch) node).lazyChild(_storage, 0);
+    return node.minKey();
+  }
+
+  void expand() {
+    ANode child = ((Branch) node()).child(_storage, idx());
+    _nodes.add(child);
+    _idxs.add(0);
+  }
+
+  // Moves past current key or subtree
+  void advance() {
+    while (!_nodes.isEmpty()) {
+      int last = _nodes.size() - 1;
+      int idx = _idxs.get(last) + 1;
+      if (idx < _nodes.get(last)._len) {
+        _idxs.set(last, idx);
+        return;
+      }
+      _nodes.remove(last);
+      _idxs.remove(last);
+    }
+  }
+
+  void clear() {
+    _nodes.clear();
+    _idxs.clear();
+  }
+
+  // Whether other’s current subtree is the next one after what’s left of this
+  // cursor’s subtree on the same level. Then everything this cursor has before
+  // it comes before other’s subtree, no need to restore it to compare keys
+  boolean followedBy(MergeCursor other) {
+    int level = other.level();
+    for (int i = _nodes.size() - 1; i >= 0; --i) {
+      ANode node = _nodes.get(i);
+      if (node.level() > level)
+        return false;
+      if (node.level() == level) {
+        int next = _idxs.get(i) + 1;
+        return next < node._len && same((Branch) node, next, (Branch) other.node(), other.idx());
+      }
+    }
+    return false;
+  }
+
+  // Both cursors point to the same subtree: same address or same node in memory
+  static boolean same(MergeCursor a, MergeCursor b) {
+    return same((Branch) a.node(), a.idx(), (Branch) b.node(), b.idx());
+  }
+
+  static boolean same(Branch ba, int ia, Branch bb, int ib) {
+    Object addr = ba.address(ia);
+    if (addr != null && addr.equals(bb.address(ib)))
+      return true;
+    Object child = ba._children == null ? null : ba._settings.readReference(ba._children[ia]);
+    return child != null && bb._children != null && child == bb._settings.readReference(bb._children[ib]);
+  }
+}
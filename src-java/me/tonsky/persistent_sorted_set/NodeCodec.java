@@ -0,0 +1,192 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.nio.*;
+
+/**
+ * Binary encoding of nodes for IStorage implementations:
+ *
+ *   varint (level << 1) | indexed (level is 0 for leaves)
+ *   varint len
+ *   len keys, written with KeyCodec
+ *   for branches: len addresses, written with address KeyCodec,
+ *                 then len varint subtree counts (0 == unknown)
+ *
+ * Decoding goes straight into Leaf/Branch arrays.
+ *
+ * With indexedLeaves, leaves are written so that any key can be decoded
+ * on its own, and are decoded into LazyLeaf:
+ *
+ *   varint 1
+ *   varint len
+ *   int    total size of keys
+ *   len ints, offset of each key (from the first key)
+ *   len keys, written with KeyCodec without previous key
+ */
+@SuppressWarnings("unchecked")
+public class NodeCodec<Key, Address> {
+  public final KeyCodec<Key> _keyCodec;
+  public final KeyCodec<Address> _addressCodec;
+  public final Settings _settings;
+  public final boolean _indexedLeaves;
+
+  public NodeCodec(KeyCodec<Key> keyCodec, KeyCodec<Address> addressCodec, Settings settings) {
+    this(keyCodec, addressCodec, settings, false);
+  }
+
+  public NodeCodec(KeyCodec<Key> keyCodec, KeyCodec<Address> addressCodec, Settings settings, boolean indexedLeaves) {
+    _keyCodec = keyCodec;
+    _addressCodec = addressCodec;
+    _settings = settings;
+    _indexedLeaves = indexedLeaves;
+  }
+
+  /**
+   * Writes node at out.position(), throws BufferOverflowException if it doesn’t fit
+   */
+  public void encode(ANode<Key, Address> node, ByteBuffer out) {
+    node = node.materialize();
+    int len = node._len;
+    if (_indexedLeaves && node instanceof Leaf) {
+      encodeIndexed(node, out);
+      return;
+    }
+    writeVarLong(out, node.level() << 1);
+    writeVarLong(out, len);
+    Key prev = null;
+    for (int i = 0; i < len; ++i) {
+      Key key = node._keys[i];
+      _keyCodec.write(out, prev, key);
+      prev = key;
+    }
+    if (node instanceof Branch) {
+      Branch<Key, Address> branch = (Branch<Key, Address>) node;
+      if (branch._addresses == null) {
+        throw new IllegalArgumentException("Children must be stored before their parent");
+      }
+      Address prevAddress = null;
+      for (int i = 0; i < len; ++i) {
+        Address address = branch._addresses[i];
+        if (address == null) {
+          throw new IllegalArgumentException("Children must be stored before their parent");
+        }
+        _addressCodec.write(out, prevAddress, address);
+        prevAddress = address;
+      }
+      for (int i = 0; i < len; ++i) {
+        writeVarLong(out, branch.cachedCount(i));
+      }
+    }
+  }
+
+  void encodeIndexed(ANode<Key, Address> leaf, ByteBuffer out) {
+    int len = leaf._len;
+    writeVarLong(out, 1);
+    writeVarLong(out, len);
+    int sizePos = out.position();
+    int offsetsPos = sizePos + 4;
+    int dataPos = offsetsPos + 4 * len;
+    if (dataPos > out.limit()) {
+      throw new BufferOverflowException();
+    }
+    out.position(dataPos);
+    for (int i = 0; i < len; ++i) {
+      out.putInt(offsetsPos + 4 * i, out.position() - dataPos);
+      _keyCodec.write(out, null, leaf._keys[i]);
+    }
+    out.putInt(sizePos, out.position() - dataPos);
+  }
+
+  /**
+   * Encodes node into a new heap buffer, flipped and ready for reading
+   */
+  public ByteBuffer encode(ANode<Key, Address> node) {
+    int capacity = 64 + node._len * 16;
+    while (true) {
+      ByteBuffer out = ByteBuffer.allocate(capacity);
+      try {
+        encode(node, out);
+        out.flip();
+        return out;
+      } catch (BufferOverflowException e) {
+        capacity *= 2;
+      }
+    }
+  }
+
+  public byte[] encodeBytes(ANode<Key, Address> node) {
+    ByteBuffer buf = encode(node);
+    byte[] bytes = new byte[buf.remaining()];
+    buf.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Reads node starting at in.position(), advances position past it
+   */
+  public ANode<Key, Address> decode(ByteBuffer in) {
+    int header = (int) readVarLong(in);
+    int level = header >>> 1;
+    int len = (int) readVarLong(in);
+    if ((header & 1) == 1) {
+      // Keeps reference to in’s memory, no copying
+      int size = in.getInt();
+      int offsetsPos = in.position();
+      int dataPos = offsetsPos + 4 * len;
+      ByteBuffer buf = in.duplicate();
+      in.position(dataPos + size);
+      return new LazyLeaf<Key, Address>(len, buf, offsetsPos, dataPos, _keyCodec, _settings);
+    }
+    Key[] keys = (Key[]) new Object[len];
+    Key prev = null;
+    for (int i = 0; i < len; ++i) {
+      prev = keys[i] = _keyCodec.read(in, prev);
+    }
+    if (level == 0) {
+      return new Leaf<Key, Address>(len, keys, _settings);
+    }
+    Address[] addresses = (Address[]) new Object[len];
+    Address prevAddress = null;
+    for (int i = 0; i < len; ++i) {
+      prevAddress = addresses[i] = _addressCodec.read(in, prevAddress);
+    }
+    int[] counts = new int[len];
+    for (int i = 0; i < len; ++i) {
+      counts[i] = (int) readVarLong(in);
+    }
+    return new Branch<Key, Address>(level, len, keys, addresses, counts, null, _settings);
+  }
+
+  public ANode<Key, Address> decode(byte[] bytes) {
+    return decode(ByteBuffer.wrap(bytes));
+  }
+
+  // Unsigned LEB128
+  public static void writeVarLong(ByteBuffer out, long v) {
+    while ((v & ~0x7FL) != 0) {
+      out.put((byte) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.put((byte) v);
+  }
+
+  public static long readVarLong(ByteBuffer in) {
+    long v = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.get();
+      v |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return v;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  public static void writeSignedVarLong(ByteBuffer out, long v) {
+    writeVarLong(out, (v << 1) ^ (v >> 63));
+  }
+
+  public static long readSignedVarLong(ByteBuffer in) {
+    long v = readVarLong(in);
+    return (v >>> 1) ^ -(v & 1);
+  }
+}
@@ -0,0 +1,324 @@
+package me.tonsky.persistent_sorted_set;
+
+import clojure.lang.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Sorted set of primitive longs in natural order. Same B-tree as
+ * PersistentSortedSet, but nodes keep keys in long[], so there’s
+ * no boxing or comparator calls on the hot path.
+ *
+ * Boxes only at Clojure/java.util boundaries (seq, iterator(), reduce(IFn)).
+ * Use longIterator(), reduce(LongBinaryOperator, long) and forEach(LongConsumer)
+ * to stay primitive.
+ */
+@SuppressWarnings("unchecked")
+public class PersistentLongSortedSet<Address> extends APersistentSortedSet<Long, Address>
+    implements IEditableCollection,
+        ITransientSet,
+        Reversible,
+        Sorted,
+        IReduce {
+
+  public static ALongNode[] EARLY_EXIT = new ALongNode[0];
+  public static ALongNode[] UNCHANGED = new ALongNode[0];
+
+  public static final PersistentLongSortedSet EMPTY = new PersistentLongSortedSet();
+
+  public Address _address;
+  public Object _root; // Object == ALongNode | SoftReference<ALongNode> | WeakReference<ALongNode>
+  public int _count;
+  public int _version;
+  public final Settings _settings;
+  public ILongStorage<Address> _storage;
+
+  public PersistentLongSortedSet() {
+    this(null, null, new Settings());
+  }
+
+  public PersistentLongSortedSet(IPersistentMap meta, ILongStorage<Address> storage, Settings settings) {
+    this(meta, null, storage, new LongLeaf<Address>(0, settings), 0, settings, 0);
+  }
+
+  public PersistentLongSortedSet(IPersistentMap meta, Address address, ILongStorage<Address> storage, Object root, int count, Settings settings, int version) {
+    super(meta, RT.DEFAULT_COMPARATOR);
+    _address  = address;
+    _root     = root;
+    _count    = count;
+    _version  = version;
+    _settings = settings;
+    _storage  = storage;
+  }
+
+  public static PersistentLongSortedSet restore(Object address, ILongStorage storage, Settings settings) {
+    return new PersistentLongSortedSet(null, address, storage, null, -1, settings, 0);
+  }
+
+  public ALongNode<Address> root() {
+    assert _address != null || _root != null;
+    ALongNode root = (ALongNode<Address>) _settings.readReference(_root);
+    if (root == null && _address != null) {
+      root = _storage.restore(_address);
+      _root = _settings.makeReference(root);
+    }
+    return root;
+  }
+
+  public boolean editable() {
+    return _settings.editable();
+  }
+
+  public void walkAddresses(IFn onAddress) {
+    if (_address != null && !RT.booleanCast(onAddress.invoke(_address))) {
+      return;
+    }
+    root().walkAddresses(_storage, onAddress);
+  }
+
+  public Address store() {
+    assert _storage != null;
+    if (_address == null) {
+      ALongNode<Address> root = root();
+      _address = root.store(_storage);
+      _root = _settings.makeReference(root);
+      _storage.flush(_address);
+    }
+    return _address;
+  }
+
+  public Address store(ILongStorage<Address> storage) {
+    _storage = storage;
+    return store();
+  }
+
+  public String str() {
+    return root().str(_storage, 0);
+  }
+
+  // IObj
+  public PersistentLongSortedSet withMeta(IPersistentMap meta) {
+    if (_meta == meta) {
+      return this;
+    }
+    return new PersistentLongSortedSet(meta, _address, _storage, _root, _count, _settings, _version);
+  }
+
+  // Counted
+  public int count() {
+    if (_count < 0) _count = root().count(_storage);
+    return _count;
+  }
+
+  int alterCount(int delta) {
+    return _count < 0 ? _count : _count + delta;
+  }
+
+  // Primitive API
+  public boolean contains(long key) {
+    return root().contains(_storage, key);
+  }
+
+  public PersistentLongSortedSet cons(long key) {
+    ALongNode[] nodes = root().add(_storage, key, _settings);
+
+    if (UNCHANGED == nodes) return this;
+
+    if (editable()) {
+      if (1 == nodes.length) {
+        _root = nodes[0];
+      } else if (2 == nodes.length) {
+        _root = newRoot(nodes);
+      }
+      _address = null;
+      _count = alterCount(1);
+      _version += 1;
+      return this;
+    }
+
+    ALongNode root = 1 == nodes.length ? nodes[0] : newRoot(nodes);
+    return new PersistentLongSortedSet(_meta, null, _storage, root, alterCount(1), _settings, _version + 1);
+  }
+
+  ALongNode newRoot(ALongNode[] nodes) {
+    long[] keys = new long[] {nodes[0].maxKey(), nodes[1].maxKey()};
+    return new LongBranch(nodes[0].level() + 1, 2, keys, null, new Object[] {nodes[0], nodes[1]}, _settings);
+  }
+
+  public PersistentLongSortedSet disjoin(long key) {
+    ALongNode[] nodes = root().remove(_storage, key, null, null, _settings);
+
+    // not in set
+    if (UNCHANGED == nodes) return this;
+
+    // in place update
+    if (EARLY_EXIT == nodes) {
+      _address = null;
+      _count = alterCount(-1);
+      _version += 1;
+      return this;
+    }
+
+    ALongNode newRoot = nodes[1];
+    while (newRoot instanceof LongBranch && newRoot._len == 1)
+      newRoot = ((LongBranch) newRoot).child(_storage, 0);
+
+    if (editable()) {
+      _address = null;
+      _root = newRoot;
+      _count = alterCount(-1);
+      _version += 1;
+      return this;
+    }
+    return new PersistentLongSortedSet(_meta, null, _storage, newRoot, alterCount(-1), _settings, _version + 1);
+  }
+
+  public PrimitiveIterator.OfLong longIterator() {
+    return new LongIter(this, Long.MIN_VALUE, Long.MAX_VALUE, true);
+  }
+
+  // Keys in [from, to], both inclusive
+  public PrimitiveIterator.OfLong longIterator(long from, long to) {
+    return new LongIter(this, from, to, true);
+  }
+
+  // Keys in [to, from] in reverse order
+  public PrimitiveIterator.OfLong reverseLongIterator(long from, long to) {
+    return new LongIter(this, to, from, false);
+  }
+
+  public long reduce(LongBinaryOperator f, long init) {
+    PrimitiveIterator.OfLong iter = longIterator();
+    long acc = init;
+    while (iter.hasNext())
+      acc = f.applyAsLong(acc, iter.nextLong());
+    return acc;
+  }
+
+  public void forEach(LongConsumer f) {
+    longIterator().forEachRemaining(f);
+  }
+
+  public long first() {
+    return longIterator().nextLong();
+  }
+
+  public long last() {
+    return reverseLongIterator(Long.MAX_VALUE, Long.MIN_VALUE).nextLong();
+  }
+
+  static boolean isLong(Object key) {
+    return key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte;
+  }
+
+  static long toLong(Object key) {
+    if (!isLong(key))
+      throw new IllegalArgumentException("Expected integer key, got: " + key);
+    return ((Number) key).longValue();
+  }
+
+  // Boxed API
+  public boolean contains(Object key) {
+    return isLong(key) && contains(((Number) key).longValue());
+  }
+
+  public PersistentLongSortedSet cons(Object key) {
+    return cons(toLong(key));
+  }
+
+  public PersistentLongSortedSet disjoin(Object key) {
+    return isLong(key) ? disjoin(((Number) key).longValue()) : this;
+  }
+
+  public ISeq slice(long from, long to) {
+    return RT.chunkIteratorSeq(longIterator(from, to));
+  }
+
+  public ISeq rslice(long from, long to) {
+    return RT.chunkIteratorSeq(reverseLongIterator(from, to));
+  }
+
+  // Seqable
+  public ISeq seq() {
+    return slice(Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  // Reversible
+  public ISeq rseq() {
+    return rslice(Long.MAX_VALUE, Long.MIN_VALUE);
+  }
+
+  // Sorted
+  public Comparator comparator() {
+    return _cmp;
+  }
+
+  public Object entryKey(Object entry) {
+    return entry;
+  }
+
+  public ISeq seq(boolean asc) {
+    return asc ? seq() : rseq();
+  }
+
+  public ISeq seqFrom(Object key, boolean asc) {
+    long from = toLong(key);
+    return asc ? slice(from, Long.MAX_VALUE) : rslice(from, Long.MIN_VALUE);
+  }
+
+  // IReduce
+  public Object reduce(IFn f) {
+    PrimitiveIterator.OfLong iter = longIterator();
+    if (!iter.hasNext()) return f.invoke();
+    return reduce(iter, f, iter.nextLong());
+  }
+
+  public Object reduce(IFn f, Object start) {
+    return reduce(longIterator(), f, start);
+  }
+
+  static Object reduce(PrimitiveIterator.OfLong iter, IFn f, Object acc) {
+    while (iter.hasNext()) {
+      acc = f.invoke(acc, iter.nextLong());
+      if (RT.isReduced(acc))
+        return ((IDeref) acc).deref();
+    }
+    return acc;
+  }
+
+  // IPersistentCollection
+  public PersistentLongSortedSet empty() {
+    return new PersistentLongSortedSet(_meta, _storage, _settings);
+  }
+
+  // IEditableCollection
+  public PersistentLongSortedSet asTransient() {
+    if (editable()) {
+      throw new IllegalStateException("Expected persistent set");
+    }
+    return new PersistentLongSortedSet(_meta, _address, _storage, _root, _count, _settings.editable(true), _version);
+  }
+
+  // ITransientCollection
+  public PersistentLongSortedSet conj(Object key) {
+    return cons(key);
+  }
+
+  public PersistentLongSortedSet persistent() {
+    if (!editable()) {
+      throw new IllegalStateException("Expected transient set");
+    }
+    _settings.persistent();
+    // nodes edited by this transient may have spare room in arrays, see Settings::growth
+    ALongNode root = (ALongNode) _settings.readReference(_root);
+    ALongNode trimmed = root == null ? null : root.trim(_settings);
+    if (trimmed != root)
+      _root = trimmed;
+    return this;
+  }
+
+  // Iterable
+  public Iterator iterator() {
+    return longIterator();
+  }
+}
@@ -2,6 +2,7 @@ package me.tonsky.persistent_sorted_set;
 
 import clojure.lang.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 
 @SuppressWarnings("unchecked")
@@ -11,6 +12,7 @@ public class PersistentSortedSet<Key, Address> extends APersistentSortedSet<Key,
         Reversible,
         Sorted,
         IReduce,
+        Indexed,
         IPersistentSortedSet<Key, Address> {
 
   public static ANode[] EARLY_EXIT = new ANode[0];
@@ -51,11 +53,35 @@ public class PersistentSortedSet<Key, Address> extends APersistentSortedSet<Key,
     _storage  = storage;
   }
 
+  // Bulk load from keys[0 ... len-1], which must be sorted and distinct.
+  // fillFactor is the target size of nodes relative to branching factor
+  public static PersistentSortedSet fromSorted(Object[] keys, int len, Comparator cmp, IStorage storage, Settings settings) {
+    return fromSorted(keys, len, cmp, storage, settings, Builder.DEFAULT_FILL_FACTOR);
+  }
+
+  public static PersistentSortedSet fromSorted(Object[] keys, int len, Comparator cmp, IStorage storage, Settings settings, double fillFactor) {
+    Builder builder = new Builder(settings, fillFactor);
+    builder.addKeys(keys, len);
+    return builder.build(cmp, storage);
+  }
+
+  // Same, but only keeps O(depth * branching factor) keys in memory at once
+  public static PersistentSortedSet fromSorted(Iterator keys, Comparator cmp, IStorage storage, Settings settings) {
+    return fromSorted(keys, cmp, storage, settings, Builder.DEFAULT_FILL_FACTOR);
+  }
+
+  public static PersistentSortedSet fromSorted(Iterator keys, Comparator cmp, IStorage storage, Settings settings, double fillFactor) {
+    Builder builder = new Builder(settings, fillFactor);
+    while (keys.hasNext())
+      builder.addKey(keys.next());
+    return builder.build(cmp, storage);
+  }
+
   public ANode<Key, Address> root() {
     assert _address != null || _root != null;
     ANode root = (ANode<Key, Address>) _settings.readReference(_root);
     if (root == null && _address != null) {
-      root = _storage.restore(_address);
+      root = _storage.restore(_address).materialize();
       _root = _settings.makeReference(root);
     }
     return root;
@@ -169,12 +195,38 @@ public class PersistentSortedSet<Key, Address> extends APersistentSortedSet<Key,
   }
 
   public Address store() {
+    return store((Executor) null);
+  }
+
+  // With executor, dirty subtrees of root are stored in parallel
+  public Address store(Executor executor) {
     assert _storage != null;
 
     if (_address == null) {
       ANode<Key, Address> root = (ANode) _settings.readReference(_root);
-      address(root.store(_storage));
+      if (executor != null && root.level() >= 2) {
+        Branch<Key, Address> branch = (Branch<Key, Address>) root;
+        branch.ensureAddresses();
+        CompletableFuture<Address>[] futures = new CompletableFuture[branch._len];
+        for (int i = 0; i < branch._len; ++i) {
+          if (branch._addresses[i] == null) {
+            ANode<Key, Address> child = (ANode<Key, Address>) branch._children[i];
+            futures[i] = CompletableFuture.supplyAsync(() -> storeLevels(_storage, child), executor);
+          }
+        }
+        for (int i = 0; i < branch._len; ++i) {
+          if (futures[i] != null) {
+            ANode<Key, Address> child = (ANode<Key, Address>) branch._children[i];
+            branch.address(i, futures[i].join());
+            if (branch.cachedCount(i) <= 0) {
+              branch.ensureCounts()[i] = child.count(_storage);
+            }
+          }
+        }
+      }
+      address(storeLevels(_storage, root));
       _root = _settings.makeReference(root);
+      _storage.flush(_address);
     }
 
     return _address;
@@ -185,6 +237,69 @@ public class PersistentSortedSet<Key, Address> extends APersistentSortedSet<Key,
     return store();
   }
 
+  public Address store(IStorage<Key, Address> storage, Executor executor) {
+    _storage = storage;
+    return store(executor);
+  }
+
+  // Stores all not-yet-stored nodes under root with one IStorage::storeAll call
+  // per level, starting from leaves. Returns root address
+  protected static <Key, Address> Address storeLevels(IStorage<Key, Address> storage, ANode<Key, Address> root) {
+    ArrayList<ArrayList<ANode<Key, Address>>> levels = new ArrayList<>();
+    ArrayList<ArrayList<Branch<Key, Address>>> parents = new ArrayList<>();
+    ArrayList<ArrayList<Integer>> idxs = new ArrayList<>();
+    for (int l = 0; l <= root.level(); ++l) {
+      levels.add(new ArrayList<>());
+      parents.add(new ArrayList<>());
+      idxs.add(new ArrayList<>());
+    }
+
+    ArrayDeque<ANode<Key, Address>> queue = new ArrayDeque<>();
+    levels.get(root.level()).add(root);
+    parents.get(root.level()).add(null);
+    idxs.get(root.level()).add(-1);
+    queue.add(root);
+    while (!queue.isEmpty()) {
+      ANode<Key, Address> node = queue.poll();
+      if (node instanceof Branch) {
+        Branch<Key, Address> branch = (Branch<Key, Address>) node;
+        branch.ensureAddresses();
+        for (int i = 0; i < branch._len; ++i) {
+          if (branch._addresses[i] == null) {
+            assert branch._children != null;
+            assert branch._children[i] instanceof ANode;
+            ANode<Key, Address> child = (ANode<Key, Address>) branch._children[i];
+            levels.get(child.level()).add(child);
+            parents.get(child.level()).add(branch);
+            idxs.get(child.level()).add(i);
+            queue.add(child);
+          }
+        }
+      }
+    }
+
+    Address address = null;
+    for (int l = 0; l <= root.level(); ++l) {
+      ArrayList<ANode<Key, Address>> nodes = levels.get(l);
+      if (nodes.isEmpty()) continue;
+      List<Address> addresses = storage.storeAll(nodes);
+      assert addresses.size() == nodes.size() : "storeAll returned " + addresses.size() + " addresses for " + nodes.size() + " nodes";
+      for (int j = 0; j < nodes.size(); ++j) {
+        Branch<Key, Address> parent = parents.get(l).get(j);
+        if (parent == null) {
+          address = addresses.get(j);
+        } else {
+          int idx = idxs.get(l).get(j);
+          parent.address(idx, addresses.get(j));
+          if (parent.cachedCount(idx) <= 0) {
+            parent.ensureCounts()[idx] = nodes.get(j).count(storage);
+          }
+        }
+      }
+    }
+    return address;
+  }
+
   public String toString() {
     StringBuilder sb = new StringBuilder("#{");
     for (Object o: this) {
@@ -201,6 +316,11 @@ public class PersistentSortedSet<Key, Address> extends APersistentSortedSet<Key,
     return root().str(_storage, 0);
   }
 
+  // Shape and memory of in-memory part of the tree, doesn’t restore anything
+  public Stats stats() {
+    return new Stats(this);
+  }
+
   // IObj
   public PersistentSortedSet withMeta(IPersistentMap meta) {
     if (_meta == meta) {
@@ -216,6 +336,125 @@ public class PersistentSortedSet<Key, Address> extends APersistentSortedSet<Key,
     return _count;
   }
 
+  // Indexed
+  public Object nth(int idx) {
+    if (idx < 0 || idx >= count())
+      throw new IndexOutOfBoundsException("Index " + idx + " out of bounds for count " + count());
+    ANode node = root();
+    while (node instanceof Branch) {
+      Branch branch = (Branch) node;
+      int i = 0;
+      while (true) {
+        int count = branch.count(_storage, i);
+        if (idx < count) break;
+        idx -= count;
+        ++i;
+      }
+      node = branch.child(_storage, i);
+    }
+    return node._keys[idx];
+  }
+
+  public Object nth(int idx, Object notFound) {
+    if (idx < 0 || idx >= count())
+      return notFound;
+    return nth(idx);
+  }
+
+  public int indexOf(Object key) {
+    return indexOf(key, _cmp);
+  }
+
+  // Position of key in set or -1. Only restores nodes along the path to key
+  public int indexOf(Object key, Comparator cmp) {
+    ANode node = root();
+    int base = 0;
+    while (node instanceof Branch) {
+      Branch branch = (Branch) node;
+      int idx = branch.searchFirst(key, cmp);
+      if (idx == branch._len) return -1;
+      for (int i = 0; i < idx; ++i)
+        base += branch.count(_storage, i);
+      node = branch.child(_storage, idx);
+    }
+    int idx = node.search(key, cmp);
+    return idx < 0 ? -1 : base + idx;
+  }
+
+  // Number of keys < key, or <= key if inclusive. Only restores nodes along the path to key
+  int rank(Object key, Comparator cmp, boolean inclusive) {
+    ANode node = root();
+    int base = 0;
+    while (node instanceof Branch) {
+      Branch branch = (Branch) node;
+      int idx = inclusive ? branch.searchLast(key, cmp) + 1 : branch.searchFirst(key, cmp);
+      for (int i = 0; i < idx; ++i)
+        base += branch.count(_storage, i);
+      if (idx == branch._len) return base;
+      node = branch.lazyChild(_storage, idx);
+    }
+    return base + (inclusive ? node.searchLast(key, cmp) + 1 : node.searchFirst(key, cmp));
+  }
+
+  public int count(Key from, Key to) {
+    return count(from, to, _cmp);
+  }
+
+  // Exact number of keys in [from ... to], same bounds as slice (null means unbounded).
+  // O(log n) when subtree counts are known, otherwise restores children on both paths
+  public int count(Key from, Key to, Comparator<Key> cmp) {
+    if (from != null && to != null && cmp.compare(from, to) > 0) return 0;
+    int lo = from == null ? 0 : rank(from, cmp, false);
+    int hi = to == null ? count() : rank(to, cmp, true);
+    return Math.max(0, hi - lo);
+  }
+
+  public long estimateCount(Key from, Key to) {
+    return estimateCount(from, to, _cmp);
+  }
+
+  // Approximate number of keys in [from ... to]. Follows both search paths
+  // while they go through the same child, then counts children between them
+  // at the level where they diverge. Uses subtree counts where already known,
+  // average node size otherwise. Never restores nodes off the common path
+  public long estimateCount(Key from, Key to, Comparator<Key> cmp) {
+    if (from != null && to != null && cmp.compare(from, to) > 0) return 0;
+    ANode node = root();
+    while (node instanceof Branch) {
+      Branch branch = (Branch) node;
+      int idxFrom = from == null ? 0 : branch.searchFirst(from, cmp),
+          idxTo   = to == null ? branch._len : branch.searchLast(to, cmp) + 1;
+      if (idxFrom >= branch._len) return 0;
+      // unbounded or past the last key: last child is fully in range
+      boolean toInside = idxTo < branch._len;
+      idxTo = Math.min(idxTo, branch._len - 1);
+      if (idxFrom == idxTo) {
+        node = branch.lazyChild(_storage, idxFrom);
+        continue;
+      }
+      long avg = 1;
+      for (int l = 0; l < branch._level; ++l)
+        avg *= (_settings.branchingFactor(l) + _settings.minLen(l)) >>> 1;
+      long res = 0;
+      for (int i = idxFrom; i <= idxTo; ++i) {
+        int count = branch.cachedCount(i);
+        // children bounds fall into are only partially in range
+        boolean partial = (i == idxFrom && from != null) || (i == idxTo && toInside);
+        res += (count > 0 ? count : avg) / (partial ? 2 : 1);
+      }
+      return res;
+    }
+    int idxFrom = from == null ? 0 : node.searchFirst(from, cmp),
+        idxTo   = to == null ? node._len : node.searchLast(to, cmp) + 1;
+    return Math.max(0, idxTo - idxFrom);
+  }
+
+  // Keys at positions [from, to)
+  public Seq sliceByIndex(int from, int to) {
+    if (from >= to) return null;
+    return slice((Key) nth(from), (Key) nth(to - 1), _cmp);
+  }
+
   // Sorted
   public Comparator comparator() {
     return _cmp;
@@ -236,6 +475,50 @@ public class PersistentSortedSet<Key, Address> extends APersistentSortedSet<Key,
     return seq == null ? start : seq.reduce(f, start);
   }
 
+  // Keys added (MapEntry(key, true)) and removed (MapEntry(key, false)) in other
+  // compared to this, in key order. Skips subtrees shared by both versions
+  // without restoring them. Both sets should use the same storage
+  public ISeq diff(PersistentSortedSet other) {
+    return RT.chunkIteratorSeq(new Diff(this, other));
+  }
+
+  // Same set with in-memory leaves of String keys replaced by PrefixLeaf.
+  // Leaves not loaded from storage are left as is, address is kept
+  public PersistentSortedSet compressKeys() {
+    if (editable())
+      throw new IllegalStateException("Expected persistent set");
+    ANode root = root();
+    if (!(root instanceof Branch))
+      return this;
+    Branch compressed = PrefixLeaf.compress((Branch) root);
+    if (compressed == root)
+      return this;
+    return new PersistentSortedSet(_meta, _cmp, _address, _storage, compressed, _count, _settings, _version);
+  }
+
+  // Set algebra by merging both trees. Subtrees that don’t overlap with
+  // the other set are reused as is, only their left edge is restored.
+  // Subtrees of other set are reused only if settings have the same node
+  // sizes, otherwise they are re-packed. Result uses this set’s
+  // comparator, settings and (if set) storage
+  public PersistentSortedSet union(PersistentSortedSet other) {
+    return SetOps.apply(SetOps.UNION, this, other);
+  }
+
+  public PersistentSortedSet intersection(PersistentSortedSet other) {
+    return SetOps.apply(SetOps.INTERSECTION, this, other);
+  }
+
+  public PersistentSortedSet difference(PersistentSortedSet other) {
+    return SetOps.apply(SetOps.DIFFERENCE, this, other);
+  }
+
+  // clojure.core.reducers/fold: reduces chunks of ~n keys in parallel on ForkJoinPool
+  public Object fold(long n, IFn combinef, IFn reducef) {
+    Fold task = new Fold(new SetSpliterator(this), n, combinef, reducef);
+    return ForkJoinTask.inForkJoinPool() ? task.invoke() : ForkJoinPool.commonPool().invoke(task);
+  }
+
   // IPersistentCollection
   public PersistentSortedSet empty() {
     return new PersistentSortedSet(_meta, _cmp, _storage, _settings);
@@ -246,7 +529,11 @@ public class PersistentSortedSet<Key, Address> extends APersistentSortedSet<Key,
   }
 
   public PersistentSortedSet cons(Object key, Comparator cmp) {
-    ANode[] nodes = root().add(_storage, (Key) key, cmp, _settings);
+    ANode root = root();
+    // past the last key (auto-increment ids, timestamps): no search on the way down
+    ANode[] nodes = root._len > 0 && cmp.compare(key, root.maxKey()) > 0
+      ? root.append(_storage, (Key) key, cmp, _settings)
+      : root.add(_storage, (Key) key, cmp, _settings);
 
     if (UNCHANGED == nodes) return this;
 
@@ -311,10 +598,104 @@ public class PersistentSortedSet<Key, Address> extends APersistentSortedSet<Key,
     return new PersistentSortedSet(_meta, _cmp, null, _storage, newRoot, alterCount(-1), _settings, _version + 1);
   }
 
+  // Bulk conj/disj
+  public PersistentSortedSet conjAll(Iterable keys) {
+    return conjAll(keys, _cmp);
+  }
+
+  // keys must be sorted according to cmp. Rewrites each affected node once
+  public PersistentSortedSet conjAll(Iterable keys, Comparator cmp) {
+    Key[] arr = (Key[]) sortedDistinct(keys, cmp);
+    if (arr.length == 0) return this;
+    int[] delta = new int[1];
+    ANode[] nodes = root().addAll(_storage, arr, 0, arr.length, cmp, _settings, delta);
+    if (UNCHANGED == nodes) return this;
+    return withRoot(nodes, delta[0]);
+  }
+
+  public PersistentSortedSet disjAll(Iterable keys) {
+    return disjAll(keys, _cmp);
+  }
+
+  // keys must be sorted according to cmp. Rewrites each affected node once
+  public PersistentSortedSet disjAll(Iterable keys, Comparator cmp) {
+    Key[] arr = (Key[]) sortedDistinct(keys, cmp);
+    if (arr.length == 0) return this;
+    int[] delta = new int[1];
+    ANode[] nodes = root().removeAll(_storage, arr, 0, arr.length, cmp, _settings, delta);
+    if (UNCHANGED == nodes) return this;
+    return withRoot(nodes, delta[0]);
+  }
+
+  protected static Object[] sortedDistinct(Iterable keys, Comparator cmp) {
+    ArrayList<Object> res = new ArrayList<>();
+    Object prev = null;
+    boolean first = true;
+    for (Object key: keys) {
+      if (!first) {
+        int d = cmp.compare(prev, key);
+        if (d > 0) throw new IllegalArgumentException("Keys are not sorted: " + prev + " before " + key);
+        if (d == 0) continue;
+      }
+      res.add(key);
+      prev = key;
+      first = false;
+    }
+    return res.toArray();
+  }
+
+  // nodes == top level after bulk update, delta == change in number of keys.
+  protected PersistentSortedSet withRoot(ANode[] nodes, int delta) {
+    ANode newRoot;
+    if (nodes.length == 0) {
+      newRoot = new Leaf(0, _settings);
+    } else {
+      while (nodes.length > 1)
+        nodes = Branch.pack(nodes, _settings);
+      newRoot = nodes[0];
+      while (newRoot instanceof Branch && newRoot._len == 1)
+        newRoot = ((Branch) newRoot).child(_storage, 0);
+    }
+
+    if (editable()) {
+      _address = null;
+      _root = newRoot;
+      _count = alterCount(delta);
+      _version += 1;
+      return this;
+    }
+    return new PersistentSortedSet(_meta, _cmp, null, _storage, newRoot, alterCount(delta), _settings, _version + 1);
+  }
+
   public boolean contains(Object key) {
     return root().contains(_storage, (Key) key, _cmp);
   }
 
+  public boolean[] containsBatch(Iterable keys) {
+    return containsBatch(keys, _cmp);
+  }
+
+  // keys must be sorted according to cmp. res[i] is true if i-th key is in set.
+  // Walks down the tree once for the whole batch, galloping through nodes
+  // instead of descending from root for every key
+  public boolean[] containsBatch(Iterable keys, Comparator cmp) {
+    ArrayList<Object> list = new ArrayList<>();
+    Object prev = null;
+    boolean first = true;
+    for (Object key: keys) {
+      if (!first && cmp.compare(prev, key) > 0)
+        throw new IllegalArgumentException("Keys are not sorted: " + prev + " before " + key);
+      list.add(key);
+      prev = key;
+      first = false;
+    }
+    Key[] arr = (Key[]) list.toArray();
+    boolean[] res = new boolean[arr.length];
+    if (arr.length > 0)
+      root().containsAll(_storage, arr, 0, arr.length, cmp, res);
+    return res;
+  }
+
   // IEditableCollection
   public PersistentSortedSet asTransient() {
     if (editable()) {
@@ -333,6 +714,11 @@ public class PersistentSortedSet<Key, Address> extends APersistentSortedSet<Key,
       throw new IllegalStateException("Expected transient set");
     }
     _settings.persistent();
+    // nodes edited by this transient may have spare room in arrays, see Settings::growth
+    ANode root = (ANode) _settings.readReference(_root);
+    ANode trimmed = root == null ? null : root.trim(_settings);
+    if (trimmed != root)
+      _root = trimmed;
     return this;
   }
 
@@ -340,4 +726,14 @@ public class PersistentSortedSet<Key, Address> extends APersistentSortedSet<Key,
   public Iterator iterator() {
     return new JavaIter((Seq) seq());
   }
+
+  // Mutable, reusable alternative to seq()/slice() that doesn’t allocate per step
+  public Cursor<Key, Address> cursor() {
+    return new Cursor<>(this);
+  }
+
+  // Splits at Branch children boundaries, for stream().parallel()
+  public Spliterator spliterator() {
+    return new SetSpliterator(this);
+  }
 }
\ No newline at end of file
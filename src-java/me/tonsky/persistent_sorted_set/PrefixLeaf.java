@@ -0,0 +1,273 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.lang.ref.*;
+import java.util.*;
+import clojure.lang.*;
+
+/**
+ * In-memory leaf of String keys, stored as prefix shared by all keys plus
+ * all suffixes packed into one String. Saves a String object and the shared
+ * chars per key.
+ *
+ * Like LazyLeaf, lookups (search/searchFirst/searchLast via Branch::lazyChild)
+ * work without decoding: with natural String order, key is compared to
+ * _prefix once and then to suffixes in place. Unlike LazyLeaf, materialize()
+ * returns a new plain Leaf and this one stays compressed, so iteration and
+ * mutation see full keys but don’t inflate the tree. Never used as root.
+ *
+ * Decoded Leaf is cached behind a SoftReference, so repeated scans and
+ * Cursor don’t decode (and allocate) again until memory gets tight.
+ */
+@SuppressWarnings("unchecked")
+public class PrefixLeaf<Key, Address> extends Leaf<Key, Address> {
+  static final Object[] NO_KEYS = new Object[0];
+
+  final String _prefix;
+  final String _suffixes;
+  // End of i-th suffix in _suffixes
+  final int[] _ends;
+  // Nullable, last result of materialize(). Never editable: _settings
+  // are persistent ones, so edits copy it instead of changing in place
+  volatile SoftReference<Leaf<Key, Address>> _decoded;
+
+  PrefixLeaf(int len, String prefix, String suffixes, int[] ends, Settings settings) {
+    // no _keys at all, everything that needs them goes through materialize()
+    super(0, (Key[]) NO_KEYS, settings);
+    _len      = len;
+    _prefix   = prefix;
+    _suffixes = suffixes;
+    _ends     = ends;
+  }
+
+  // PrefixLeaf with the same keys, or null if some of them are not Strings
+  public static PrefixLeaf compress(ANode leaf) {
+    int len = leaf._len;
+    if (len == 0)
+      return null;
+    for (int i = 0; i < len; ++i) {
+      if (!(leaf._keys[i] instanceof String))
+        return null;
+    }
+    String first = (String) leaf._keys[0];
+    int prefix = first.length();
+    for (int i = 1; i < len && prefix > 0; ++i) {
+      String key = (String) leaf._keys[i];
+      int max = Math.min(prefix, key.length()), j = 0;
+      while (j < max && first.charAt(j) == key.charAt(j))
+        ++j;
+      prefix = j;
+    }
+    StringBuilder sb = new StringBuilder();
+    int[] ends = new int[len];
+    for (int i = 0; i < len; ++i) {
+      sb.append((String) leaf._keys[i], prefix, ((String) leaf._keys[i]).length());
+      ends[i] = sb.length();
+    }
+    return new PrefixLeaf(len, first.substring(0, prefix), sb.toString(), ends, leaf._settings);
+  }
+
+  // Copy of branch with all in-memory plain leaves below it compressed,
+  // or branch itself if there was nothing to compress
+  public static Branch compress(Branch branch) {
+    if (branch._children == null)
+      return branch;
+    Settings settings = branch._settings;
+    Object[] children = null;
+    for (int i = 0; i < branch._len; ++i) {
+      ANode child = (ANode) settings.readReference(branch._children[i]);
+      ANode compressed = null;
+      if (child instanceof Branch) {
+        compressed = compress((Branch) child);
+      } else if (child != null && child.getClass() == Leaf.class) {
+        compressed = compress(child);
+      }
+      if (compressed != null && compressed != child) {
+        if (children == null)
+          children = Arrays.copyOfRange(branch._children, 0, branch._len);
+        children[i] = branch.address(i) == null ? compressed : settings.makeReference(compressed);
+      }
+    }
+    if (children == null)
+      return branch;
+    int len = branch._len;
+    return new Branch(branch._level, len,
+      Arrays.copyOfRange(branch._keys, 0, len),
+      branch._addresses == null ? null : Arrays.copyOfRange(branch._addresses, 0, len),
+      branch._counts == null ? null : Arrays.copyOfRange(branch._counts, 0, len),
+      children, settings);
+  }
+
+  // Comparators known to order Strings same as String::compareTo
+  static boolean natural(Comparator cmp) {
+    return cmp == RT.DEFAULT_COMPARATOR
+      || cmp == Comparator.naturalOrder()
+      || cmp.getClass().getName().equals("clojure.core$compare");
+  }
+
+  @Override
+  public Key key(int idx) {
+    int from = idx == 0 ? 0 : _ends[idx - 1];
+    return (Key) _prefix.concat(_suffixes.substring(from, _ends[idx]));
+  }
+
+  // Compares all keys to key at once: < 0 all keys are before key,
+  // > 0 all keys are after key, 0 key starts with _prefix
+  int comparePrefix(String key) {
+    int plen = _prefix.length(), max = Math.min(plen, key.length());
+    for (int i = 0; i < max; ++i) {
+      int d = _prefix.charAt(i) - key.charAt(i);
+      if (d != 0) return d;
+    }
+    return plen - max;
+  }
+
+  // Sign of key(idx).compareTo(key), for key that starts with _prefix
+  int compareSuffix(int idx, String key) {
+    int from = idx == 0 ? 0 : _ends[idx - 1], len = _ends[idx] - from;
+    int off = _prefix.length(), klen = key.length() - off;
+    int max = Math.min(len, klen);
+    for (int i = 0; i < max; ++i) {
+      int d = _suffixes.charAt(from + i) - key.charAt(off + i);
+      if (d != 0) return d;
+    }
+    return len - klen;
+  }
+
+  int compare(int idx, Key key, Comparator<Key> cmp, boolean fast) {
+    return fast ? compareSuffix(idx, (String) key) : cmp.compare(key(idx), key);
+  }
+
+  // 0 if keys should be compared one by one, otherwise same as comparePrefix
+  int head(Key key, boolean fast) {
+    return fast ? comparePrefix((String) key) : 0;
+  }
+
+  boolean fast(Key key, Comparator<Key> cmp) {
+    return key instanceof String && natural(cmp);
+  }
+
+  @Override
+  public int search(Key key, Comparator<Key> cmp) {
+    boolean fast = fast(key, cmp);
+    int head = head(key, fast);
+    if (head > 0) return -1;
+    if (head < 0) return -_len - 1;
+    int low = 0, high = _len - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int d = compare(mid, key, cmp, fast);
+      if (d < 0)
+        low = mid + 1;
+      else if (d > 0)
+        high = mid - 1;
+      else
+        return mid;
+    }
+    return -(low + 1);
+  }
+
+  @Override
+  public int searchFirst(Key key, Comparator<Key> cmp) {
+    boolean fast = fast(key, cmp);
+    int head = head(key, fast);
+    if (head > 0) return 0;
+    if (head < 0) return _len;
+    int low = 0, high = _len;
+    while (low < high) {
+      int mid = (high + low) >>> 1;
+      int d = compare(mid, key, cmp, fast);
+      if (d < 0)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  @Override
+  public int searchLast(Key key, Comparator<Key> cmp) {
+    boolean fast = fast(key, cmp);
+    int head = head(key, fast);
+    if (head > 0) return -1;
+    if (head < 0) return _len - 1;
+    int low = 0, high = _len;
+    while (low < high) {
+      int mid = (high + low) >>> 1;
+      int d = compare(mid, key, cmp, fast);
+      if (d <= 0)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low - 1;
+  }
+
+  @Override
+  public void containsAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, boolean[] res) {
+    materialize().containsAll(storage, keys, from, to, cmp, res);
+  }
+
+  @Override
+  public ANode<Key, Address> materialize() {
+    SoftReference<Leaf<Key, Address>> ref = _decoded;
+    Leaf<Key, Address> leaf = ref == null ? null : ref.get();
+    if (leaf == null) {
+      Key[] keys = (Key[]) new Object[_len];
+      for (int i = 0; i < _len; ++i)
+        keys[i] = key(i);
+      leaf = new Leaf(_len, keys, _settings);
+      _decoded = new SoftReference<>(leaf);
+    }
+    return leaf;
+  }
+
+  @Override
+  public Key minKey() {
+    return key(0);
+  }
+
+  @Override
+  public Key maxKey() {
+    return key(_len - 1);
+  }
+
+  @Override
+  public List<Key> keys() {
+    return materialize().keys();
+  }
+
+  @Override
+  public ANode[] add(IStorage storage, Key key, Comparator<Key> cmp, Settings settings) {
+    return materialize().add(storage, key, cmp, settings);
+  }
+
+  @Override
+  public ANode[] append(IStorage storage, Key key, Comparator<Key> cmp, Settings settings) {
+    return materialize().append(storage, key, cmp, settings);
+  }
+
+  @Override
+  public ANode[] remove(IStorage storage, Key key, ANode left, ANode right, Comparator<Key> cmp, Settings settings) {
+    return materialize().remove(storage, key, left, right, cmp, settings);
+  }
+
+  @Override
+  public ANode[] addAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, Settings settings, int[] delta) {
+    return materialize().addAll(storage, keys, from, to, cmp, settings, delta);
+  }
+
+  @Override
+  public ANode[] removeAll(IStorage storage, Key[] keys, int from, int to, Comparator<Key> cmp, Settings settings, int[] delta) {
+    return materialize().removeAll(storage, keys, from, to, cmp, settings, delta);
+  }
+
+  @Override
+  public Address store(IStorage<Key, Address> storage) {
+    return materialize().store(storage);
+  }
+
+  @Override
+  public String str(IStorage storage, int lvl) {
+    return materialize().str(storage, lvl);
+  }
+}
@@ -13,6 +13,8 @@ public class Seq extends ASeq implements IReduce, Reversible, IChunkedSeq, ISeek
   final Comparator _cmp;
   final boolean _asc;
   final int _version;
+  // For Seqs over Branch: idx of the last child asked to IStorage::prefetch
+  int   _prefetched;
 
   Seq(IPersistentMap meta, PersistentSortedSet set, Seq parent, ANode node, int idx, Object keyTo, Comparator cmp, boolean asc, int version) {
     super(meta);
@@ -24,6 +26,7 @@ public class Seq extends ASeq implements IReduce, Reversible, IChunkedSeq, ISeek
     _cmp    = cmp;
     _asc    = asc;
     _version = version;
+    _prefetched = asc ? -1 : Integer.MAX_VALUE;
   }
 
   void checkVersion() {
@@ -33,9 +36,39 @@ public class Seq extends ASeq implements IReduce, Reversible, IChunkedSeq, ISeek
 
   ANode child() {
     assert _node instanceof Branch : _node;
+    prefetch();
     return ((Branch) _node).child(_set._storage, _idx);
   }
 
+  // Keeps at least half of IStorage::prefetchSize siblings ahead requested
+  void prefetch() {
+    IStorage storage = _set._storage;
+    if (storage == null) return;
+    int size = storage.prefetchSize();
+    if (size <= 0) return;
+
+    Branch branch = (Branch) _node;
+    List addresses;
+    if (_asc) {
+      if (_prefetched - _idx > size / 2) return;
+      int from = Math.max(_idx + 1, _prefetched + 1),
+          to   = Math.min(branch._len, _idx + 1 + size);
+      if (from >= to) return;
+      addresses = branch.lazyAddresses(from, to);
+      _prefetched = to - 1;
+    } else {
+      if (_idx - _prefetched > size / 2) return;
+      int from = Math.max(0, _idx - size),
+          to   = Math.min(_idx, _prefetched);
+      if (from >= to) return;
+      addresses = branch.lazyAddresses(from, to);
+      Collections.reverse(addresses);
+      _prefetched = from;
+    }
+    if (!addresses.isEmpty())
+      storage.prefetch(addresses);
+  }
+
   boolean over() {
     if (_keyTo == null) return false;
     int d = _cmp.compare(first(), _keyTo);
@@ -53,6 +86,7 @@ public class Seq extends ASeq implements IReduce, Reversible, IChunkedSeq, ISeek
         if (_parent != null) {
           _node = _parent.child();
           _idx = 0;
+          _prefetched = -1;
           return !over();
         }
       }
@@ -65,6 +99,7 @@ public class Seq extends ASeq implements IReduce, Reversible, IChunkedSeq, ISeek
         if (_parent != null) {
           _node = _parent.child();
           _idx = _node._len - 1;
+          _prefetched = Integer.MAX_VALUE;
           return !over();
         }
       }
@@ -73,7 +108,9 @@ public class Seq extends ASeq implements IReduce, Reversible, IChunkedSeq, ISeek
   }
 
   protected Seq clone() {
-    return new Seq(meta(), _set, _parent, _node, _idx, _keyTo, _cmp, _asc, _version);
+    Seq seq = new Seq(meta(), _set, _parent, _node, _idx, _keyTo, _cmp, _asc, _version);
+    seq._prefetched = _prefetched;
+    return seq;
   }
 
   // ASeq
@@ -0,0 +1,127 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+
+// Union, intersection and difference by merging two trees with MergeCursors.
+// A subtree that ends before the other side’s current key (or is the same
+// node / address in both) is taken or dropped whole. Only its left edge is
+// restored, to find its min key. Overlapping parts are walked down to keys
+// and merged linearly
+@SuppressWarnings("unchecked")
+class SetOps {
+  static final int UNION = 0, INTERSECTION = 1, DIFFERENCE = 2;
+
+  final int _op;
+  final Comparator _cmp;
+  final MergeCursor _a, _b;
+  final boolean _graftA, _graftB, _sameStorage;
+  final Builder _builder;
+  final IStorage _storage;
+
+  SetOps(int op, PersistentSortedSet a, PersistentSortedSet b) {
+    if (a.editable() || b.editable()) {
+      throw new IllegalStateException("Expected persistent set");
+    }
+    _op          = op;
+    _cmp         = a._cmp;
+    _a           = new MergeCursor(a);
+    _b           = new MergeCursor(b);
+    _storage     = a._storage != null ? a._storage : b._storage;
+    // nodes stored elsewhere can’t be linked from the result, and
+    // nodes of different size can’t be mixed with result’s own
+    _graftA      = a._storage == null || a._storage == _storage;
+    _graftB      = (b._storage == null || b._storage == _storage) && a._settings.sameLayout(b._settings);
+    _sameStorage = a._storage == b._storage;
+    _builder     = new Builder(a._settings, Builder.DEFAULT_FILL_FACTOR, _storage);
+  }
+
+  static PersistentSortedSet apply(int op, PersistentSortedSet a, PersistentSortedSet b) {
+    SetOps ops = new SetOps(op, a, b);
+    return ops.run().build(a._cmp, ops._storage);
+  }
+
+  // Adds current key or subtree to the result and moves past it
+  void take(MergeCursor cursor, boolean graft) {
+    if (cursor.atKey()) {
+      _builder.addKey(cursor.key());
+      cursor.advance();
+    } else if (graft) {
+      _builder.addGraft(new Builder.Graft((Branch) cursor.node(), cursor.idx(), cursor._storage));
+      cursor.advance();
+    } else {
+      cursor.expand();
+    }
+  }
+
+  Builder run() {
+    MergeCursor a = _a, b = _b;
+    while (true) {
+      if (a.over() && b.over())
+        break;
+
+      if (b.over()) {
+        if (_op == INTERSECTION) break;
+        take(a, _graftA);
+        continue;
+      }
+
+      if (a.over()) {
+        if (_op != UNION) break;
+        take(b, _graftB);
+        continue;
+      }
+
+      // a’s subtree is entirely before b
+      if (!a.atKey() && _cmp.compare(a.maxKey(), b.minKey()) < 0) {
+        if (_op == INTERSECTION) a.advance();
+        else take(a, _graftA);
+        continue;
+      }
+
+      // b’s subtree is entirely before a
+      if (!b.atKey() && _cmp.compare(b.maxKey(), a.minKey()) < 0) {
+        if (_op == UNION) take(b, _graftB);
+        else b.advance();
+        continue;
+      }
+
+      // same subtree in both
+      if (_sameStorage && !a.atKey() && a.level() == b.level() && MergeCursor.same(a, b)) {
+        if (_op == DIFFERENCE) {
+          a.advance();
+          b.advance();
+          continue;
+        } else if (_graftA) {
+          take(a, true);
+          b.advance();
+          continue;
+        }
+      }
+
+      // overlapping, look closer
+      if (!a.atKey() && a.level() >= b.level()) {
+        a.expand();
+        continue;
+      }
+      if (!b.atKey()) {
+        b.expand();
+        continue;
+      }
+
+      Object ka = a.key(), kb = b.key();
+      int c = _cmp.compare(ka, kb);
+      if (c < 0) {
+        if (_op != INTERSECTION) _builder.addKey(ka);
+        a.advance();
+      } else if (c > 0) {
+        if (_op == UNION) _builder.addKey(kb);
+        b.advance();
+      } else {
+        if (_op != DIFFERENCE) _builder.addKey(ka);
+        a.advance();
+        b.advance();
+      }
+    }
+    return _builder;
+  }
+}
@@ -0,0 +1,158 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+import java.util.function.*;
+import clojure.lang.*;
+
+// Covers keys under _node’s children (or, for leaf, keys) [_from ... _to).
+// Splits at child boundaries, descending one level when a single child is left,
+// so every half is a set of whole subtrees and its size is known from counts
+@SuppressWarnings("unchecked")
+class SetSpliterator implements Spliterator {
+  final PersistentSortedSet _set;
+  ANode _node;
+  int _from, _to;
+  // Keys left, -1 if not computed yet
+  long _size = -1;
+  // Created by first tryAdvance, after that no more splitting
+  Iterator _iter;
+
+  SetSpliterator(PersistentSortedSet set, ANode node, int from, int to) {
+    _set  = set;
+    _node = node;
+    _from = from;
+    _to   = to;
+  }
+
+  SetSpliterator(PersistentSortedSet set) {
+    this(set, set.root(), 0, set.root()._len);
+  }
+
+  public int characteristics() {
+    return ORDERED | SORTED | DISTINCT | SIZED | SUBSIZED | (_set.editable() ? 0 : IMMUTABLE);
+  }
+
+  public Comparator getComparator() {
+    return _set._cmp;
+  }
+
+  public long estimateSize() {
+    if (_size < 0) {
+      if (_node instanceof Branch) {
+        Branch branch = (Branch) _node;
+        long size = 0;
+        for (int i = _from; i < _to; ++i)
+          size += branch.count(_set._storage, i);
+        _size = size;
+      } else {
+        _size = _to - _from;
+      }
+    }
+    return _size;
+  }
+
+  public SetSpliterator trySplit() {
+    if (_iter != null)
+      return null;
+    while (_to - _from == 1 && _node instanceof Branch) {
+      _node = ((Branch) _node).child(_set._storage, _from);
+      _from = 0;
+      _to   = _node._len;
+    }
+    if (_to - _from < 2)
+      return null;
+    int mid = (_from + _to) >>> 1;
+    SetSpliterator prefix = new SetSpliterator(_set, _node, _from, mid);
+    _from = mid;
+    _size = -1;
+    return prefix;
+  }
+
+  // Leftmost key of subtree under idx-th child
+  Object firstKey() {
+    ANode node = _node;
+    int idx = _from;
+    while (node instanceof Branch) {
+      node = ((Branch) node).child(_set._storage, idx);
+      idx = 0;
+    }
+    return node._keys[idx];
+  }
+
+  public boolean tryAdvance(Consumer action) {
+    if (_iter == null) {
+      if (_from >= _to)
+        return false;
+      estimateSize();
+      Seq seq = _set.slice(firstKey(), _node._keys[_to - 1], _set._cmp);
+      _iter = new JavaIter(seq);
+    }
+    if (!_iter.hasNext())
+      return false;
+    action.accept(_iter.next());
+    --_size;
+    return true;
+  }
+
+  public void forEachRemaining(Consumer action) {
+    if (_iter != null) {
+      while (_iter.hasNext()) {
+        action.accept(_iter.next());
+        --_size;
+      }
+      return;
+    }
+    forEach(_node, _from, _to, action);
+    _from = _to;
+    _size = 0;
+  }
+
+  void forEach(ANode node, int from, int to, Consumer action) {
+    if (node instanceof Branch) {
+      Branch branch = (Branch) node;
+      for (int i = from; i < to; ++i) {
+        ANode child = branch.child(_set._storage, i);
+        forEach(child, 0, child._len, action);
+      }
+    } else {
+      for (int i = from; i < to; ++i)
+        action.accept(node._keys[i]);
+    }
+  }
+
+  // Reduces remaining keys, stops early on Reduced (returned as is)
+  Object reduce(IFn f, Object acc) {
+    if (_iter != null) {
+      while (_iter.hasNext()) {
+        acc = f.invoke(acc, _iter.next());
+        --_size;
+        if (RT.isReduced(acc))
+          return acc;
+      }
+      return acc;
+    }
+    acc = reduce(_node, _from, _to, f, acc);
+    _from = _to;
+    _size = 0;
+    return acc;
+  }
+
+  Object reduce(ANode node, int from, int to, IFn f, Object acc) {
+    if (node instanceof Branch) {
+      Branch branch = (Branch) node;
+      for (int i = from; i < to; ++i) {
+        ANode child = branch.child(_set._storage, i);
+        acc = reduce(child, 0, child._len, f, acc);
+        if (RT.isReduced(acc))
+          return acc;
+      }
+    } else {
+      for (int i = from; i < to; ++i) {
+        acc = f.invoke(acc, node._keys[i]);
+        if (RT.isReduced(acc))
+          return acc;
+      }
+    }
+    return acc;
+  }
+}
@@ -4,16 +4,41 @@ import java.lang.ref.*;
 import java.util.concurrent.atomic.*;
 
 public class Settings {
+  public static final double DEFAULT_SPLIT_RATIO = 0.5;
+
+  // Max len of branches
   public final int _branchingFactor;
+  // Max len of leaves
+  public final int _leafBranchingFactor;
   public final RefType _refType;
+  public final Growth _growth;
+  // Merge threshold, capped at half of node capacity, see minLen
+  public final int _minBranchingFactor;
+  // Share of items left node keeps when a full node splits
+  public final double _splitRatio;
+  // Nullable, see KeyHint
+  public final KeyHint _keyHint;
   public final AtomicBoolean _edit;
 
-  public Settings(int branchingFactor, RefType refType, AtomicBoolean edit) {
+  public Settings(int branchingFactor, int leafBranchingFactor, RefType refType, Growth growth, int minBranchingFactor, double splitRatio, KeyHint keyHint, AtomicBoolean edit) {
     _branchingFactor = branchingFactor;
+    _leafBranchingFactor = leafBranchingFactor;
     _refType = refType;
+    _growth = growth;
+    _minBranchingFactor = minBranchingFactor;
+    _splitRatio = splitRatio;
+    _keyHint = keyHint;
     _edit = edit;
   }
 
+  public Settings(int branchingFactor, RefType refType, Growth growth, AtomicBoolean edit) {
+    this(branchingFactor, branchingFactor, refType, growth, branchingFactor >>> 1, DEFAULT_SPLIT_RATIO, null, edit);
+  }
+
+  public Settings(int branchingFactor, RefType refType, AtomicBoolean edit) {
+    this(branchingFactor, refType, Growth.GEOMETRIC, edit);
+  }
+
   public Settings() {
     this(0, null);
   }
@@ -23,29 +48,132 @@ public class Settings {
   }
 
   public Settings(int branchingFactor, RefType refType) {
+    this(branchingFactor, refType, (Growth) null);
+  }
+
+  public Settings(int branchingFactor, RefType refType, Growth growth) {
+    this(branchingFactor, refType, growth, 0, 0);
+  }
+
+  // minBranchingFactor: nodes with fewer items are merged or rebalanced with
+  // a neighbour on remove, 1..branchingFactor/2 (default). Lower means fewer
+  // rebalances (and fewer dirty nodes to store) on delete-heavy sets, 1 means
+  // nodes are only merged away once empty.
+  // splitRatio: share of items left node keeps when a full node splits on
+  // insert, 0.5 by default. Both nodes still keep at least minBranchingFactor.
+  // 0 for defaults
+  public Settings(int branchingFactor, RefType refType, Growth growth, int minBranchingFactor, double splitRatio) {
+    this(branchingFactor, 0, refType, growth, minBranchingFactor, splitRatio);
+  }
+
+  // leafBranchingFactor: max len of leaves, branchingFactor is then only used
+  // for branches. Lets leaves match storage page size while branches stay
+  // small enough to binary search within a few cache lines, or the other way
+  // around. 0 for same as branchingFactor
+  public Settings(int branchingFactor, int leafBranchingFactor, RefType refType, Growth growth, int minBranchingFactor, double splitRatio) {
+    this(branchingFactor, leafBranchingFactor, refType, growth, minBranchingFactor, splitRatio, null);
+  }
+
+  // keyHint: nullable, lets branches search packed long hints first, see KeyHint
+  public Settings(int branchingFactor, int leafBranchingFactor, RefType refType, Growth growth, int minBranchingFactor, double splitRatio, KeyHint keyHint) {
     if (branchingFactor <= 0) {
       branchingFactor = 512;
     }
+    if (leafBranchingFactor <= 0) {
+      leafBranchingFactor = branchingFactor;
+    }
     if (null == refType) {
       refType = RefType.SOFT;
     }
+    if (null == growth) {
+      growth = Growth.GEOMETRIC;
+    }
+    int maxMin = Math.max(branchingFactor, leafBranchingFactor) >>> 1;
+    if (minBranchingFactor <= 0 || minBranchingFactor > maxMin) {
+      minBranchingFactor = maxMin;
+    }
+    if (splitRatio <= 0 || splitRatio >= 1) {
+      splitRatio = DEFAULT_SPLIT_RATIO;
+    }
     _branchingFactor = branchingFactor;
+    _leafBranchingFactor = leafBranchingFactor;
     _refType = refType;
+    _growth = growth;
+    _minBranchingFactor = minBranchingFactor;
+    _splitRatio = splitRatio;
+    _keyHint = keyHint;
     _edit = null;
   }
 
   public int minBranchingFactor() {
-    return _branchingFactor >>> 1;
+    return _minBranchingFactor;
+  }
+
+  // Min len of a node at level before it’s merged with a neighbour. Branches
+  // keep at least 2 children, so that every node has a sibling to merge with
+  public int minLen(int level) {
+    int min = Math.min(_minBranchingFactor, branchingFactor(level) >>> 1);
+    return level == 0 ? min : Math.max(2, min);
+  }
+
+  // Whether nodes built with other settings satisfy size limits of these,
+  // so they can be linked into a tree as is
+  public boolean sameLayout(Settings other) {
+    return _branchingFactor == other._branchingFactor
+      && _leafBranchingFactor == other._leafBranchingFactor
+      && _minBranchingFactor == other._minBranchingFactor;
+  }
+
+  public double splitRatio() {
+    return _splitRatio;
+  }
+
+  // How many of len items left node keeps when splitting a node at level
+  public int splitLen(int level, int len) {
+    int min = minLen(level);
+    return Math.max(min, Math.min(len - min, (int) Math.round(len * _splitRatio)));
+  }
+
+  public KeyHint keyHint() {
+    return _keyHint;
   }
 
   public int branchingFactor() {
     return _branchingFactor;
   }
 
+  public int leafBranchingFactor() {
+    return _leafBranchingFactor;
+  }
+
+  // Max len of a node at level
+  public int branchingFactor(int level) {
+    return level == 0 ? _leafBranchingFactor : _branchingFactor;
+  }
+
   public int expandLen() {
     return 8;
   }
 
+  public Growth growth() {
+    return _growth;
+  }
+
+  // Array length for a transient node of len items at level, leaves room to insert in place
+  public int transientLen(int level, int len) {
+    int bf = branchingFactor(level);
+    switch (_growth) {
+    case LINEAR:
+      return Math.min(bf, len + expandLen());
+    case GEOMETRIC:
+      return Math.min(bf, Math.max(len + expandLen(), len + (len >>> 1)));
+    case FULL:
+      return Math.max(len, bf);
+    default:
+      throw new RuntimeException("Unexpected _growth: " + _growth);
+    }
+  }
+
   public RefType refType() {
     return _refType;
   }
@@ -57,7 +185,7 @@ public class Settings {
   public Settings editable(boolean value) {
     assert !editable();
     assert value == true;
-    return new Settings(_branchingFactor, _refType, new AtomicBoolean(value));
+    return new Settings(_branchingFactor, _leafBranchingFactor, _refType, _growth, _minBranchingFactor, _splitRatio, _keyHint, new AtomicBoolean(value));
   }
 
   public void persistent() {
@@ -0,0 +1,119 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.lang.ref.*;
+
+/**
+ * Shape and heap footprint of the part of a tree that is currently in memory.
+ * Collected by walking resident nodes only: nothing is restored from storage,
+ * unloaded children are counted but not entered. Per-level arrays are indexed
+ * by ANode::level, 0 == leaves.
+ */
+public class Stats {
+  public static final int BUCKETS = 10;
+
+  // Levels in tree, 0 if empty or root is not in memory. Leaves are at 0, root at depth - 1
+  public final int depth;
+  // Resident nodes per level
+  public final long[] nodes;
+  // Resident nodes per level by _len / branchingFactor(level), in BUCKETS equal buckets.
+  // Full nodes go to the last one
+  public final long[][] fill;
+  // Children of resident branches by Branch state: in memory and not stored,
+  // in memory and stored, stored but not in memory (not restored or collected)
+  public final long unstored, stored, unloaded;
+  // Reference objects holding resident nodes, root included
+  public final long softRefs, weakRefs;
+  // Estimate of heap held by resident nodes and keys, see CachingStorage::estimateBytes
+  public final long bytes;
+
+  long _unstored, _stored, _unloaded, _softRefs, _weakRefs, _bytes;
+
+  Stats(PersistentSortedSet set) {
+    Settings settings = set._settings;
+    Object ref = set._root;
+    countRef(ref);
+    ANode root = (ANode) settings.readReference(ref);
+    if (root == null) {
+      _unloaded = set._address == null ? 0 : 1;
+      depth = 0;
+    } else {
+      depth = root._len == 0 ? 0 : root.level() + 1;
+    }
+    nodes = new long[depth];
+    fill  = new long[depth][BUCKETS];
+    if (depth > 0)
+      walk(root, settings);
+    unstored = _unstored;
+    stored   = _stored;
+    unloaded = _unloaded;
+    softRefs = _softRefs;
+    weakRefs = _weakRefs;
+    bytes    = _bytes;
+  }
+
+  void countRef(Object ref) {
+    if (ref instanceof SoftReference)
+      ++_softRefs;
+    else if (ref instanceof WeakReference)
+      ++_weakRefs;
+  }
+
+  void walk(ANode node, Settings settings) {
+    int level = node.level();
+    ++nodes[level];
+    ++fill[level][Math.min(BUCKETS - 1, node._len * BUCKETS / settings.branchingFactor(level))];
+    _bytes += estimateBytes(node);
+    if (!(node instanceof Branch))
+      return;
+    Branch branch = (Branch) node;
+    for (int i = 0; i < branch._len; ++i) {
+      Object ref = branch._children == null ? null : branch._children[i];
+      countRef(ref);
+      ANode child = (ANode) node._settings.readReference(ref);
+      if (child == null) {
+        ++_unloaded;
+      } else {
+        if (branch.address(i) == null)
+          ++_unstored;
+        else
+          ++_stored;
+        walk(child, settings);
+      }
+    }
+  }
+
+  static long estimateBytes(ANode node) {
+    long bytes = CachingStorage.estimateBytes(node);
+    if (node instanceof PrefixLeaf) {
+      PrefixLeaf leaf = (PrefixLeaf) node;
+      bytes += 24 + estimateKey(leaf._prefix) + estimateKey(leaf._suffixes) + 16 + 4L * leaf._ends.length;
+      // cached decoded copy, if it’s still around
+      Reference decoded = leaf._decoded;
+      ANode copy = decoded == null ? null : (ANode) decoded.get();
+      return copy == null ? bytes : bytes + 48 + estimateBytes(copy);
+    }
+    if (node instanceof Branch) {
+      // Reference objects, separator keys are the same objects as in leaves
+      Branch branch = (Branch) node;
+      if (branch._children != null)
+        for (int i = 0; i < branch._len; ++i)
+          if (branch._children[i] instanceof Reference)
+            bytes += 48;
+      return bytes;
+    }
+    // LazyLeaf keys not decoded yet are null and live in storage buffer
+    for (int i = 0; i < node._len; ++i)
+      bytes += estimateKey(node._keys[i]);
+    return bytes;
+  }
+
+  // Strings as Latin-1 compact strings, boxed numbers as 16 bytes,
+  // anything else as a bare object header
+  static long estimateKey(Object key) {
+    if (key == null)
+      return 0;
+    if (key instanceof String)
+      return 24 + 16 + ((String) key).length();
+    return 16;
+  }
+}
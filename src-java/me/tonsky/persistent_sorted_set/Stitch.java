@@ -1,7 +1,7 @@
 package me.tonsky.persistent_sorted_set;
 
 public class Stitch {
-  Object[] target;
+  Object target;
   int offset;
 
   public Stitch(Object[] target, int offset) {
@@ -9,6 +9,16 @@ public class Stitch {
     this.offset = offset;
   }
 
+  public Stitch(int[] target, int offset) {
+    this.target = target;
+    this.offset = offset;
+  }
+
+  public Stitch(long[] target, int offset) {
+    this.target = target;
+    this.offset = offset;
+  }
+
   public Stitch copyAll(Object[] source, int from, int to) {
     if (to >= from) {
       if (source != null) {
@@ -19,9 +29,41 @@ public class Stitch {
     return this;
   }
 
+  public Stitch copyAll(int[] source, int from, int to) {
+    if (to >= from) {
+      if (source != null) {
+        System.arraycopy(source, from, target, offset, to - from);
+      }
+      offset += to - from;
+    }
+    return this;
+  }
+
+  public Stitch copyAll(long[] source, int from, int to) {
+    if (to >= from) {
+      if (source != null) {
+        System.arraycopy(source, from, target, offset, to - from);
+      }
+      offset += to - from;
+    }
+    return this;
+  }
+
   public Stitch copyOne(Object val) {
-    target[offset] = val;
+    ((Object[]) target)[offset] = val;
+    ++offset;
+    return this;
+  }
+
+  public Stitch copyOne(int val) {
+    ((int[]) target)[offset] = val;
+    ++offset;
+    return this;
+  }
+
+  public Stitch copyOne(long val) {
+    ((long[]) target)[offset] = val;
     ++offset;
     return this;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,182 @@
+package me.tonsky.persistent_sorted_set;
+
+import java.util.*;
+
+// W-TinyLFU: new entries land in a small LRU window. Entries leaving
+// the window compete with the LRU entry of the main segmented LRU
+// and are only admitted if they were requested more often recently
+// (according to count-min sketch). Main is split into probation
+// and protected, second hit in probation promotes to protected.
+//
+// Survives scans (one-off reads never get past the window)
+// while keeping frequently used nodes (upper levels of the tree)
+class TinyLFUCache extends ACache {
+  final long _windowCapacity, _mainCapacity, _protectedCapacity;
+  final LinkedHashMap<Object, Entry> _window    = new LinkedHashMap<>(16, 0.75f, true);
+  final LinkedHashMap<Object, Entry> _probation = new LinkedHashMap<>(16, 0.75f, true);
+  final LinkedHashMap<Object, Entry> _protected = new LinkedHashMap<>(16, 0.75f, true);
+  long _windowWeight, _probationWeight, _protectedWeight;
+  final Sketch _sketch;
+
+  TinyLFUCache(long capacity, int expectedSize) {
+    super(capacity);
+    _windowCapacity    = Math.max(1, capacity / 100);
+    _mainCapacity      = Math.max(0, capacity - _windowCapacity);
+    _protectedCapacity = _mainCapacity * 4 / 5;
+    _sketch            = new Sketch(expectedSize);
+  }
+
+  @Override
+  public Object get(Object key) {
+    _sketch.increment(key);
+    Entry e = _window.get(key);
+    if (e != null) {
+      return e.value;
+    }
+    e = _protected.get(key);
+    if (e != null) {
+      return e.value;
+    }
+    e = _probation.remove(key);
+    if (e != null) {
+      _probationWeight -= e.weight;
+      _protected.put(key, e);
+      _protectedWeight += e.weight;
+      // demote LRU of protected back to probation
+      Iterator<Entry> iter = _protected.values().iterator();
+      while (_protectedWeight > _protectedCapacity && iter.hasNext()) {
+        Entry demoted = iter.next();
+        iter.remove();
+        _protectedWeight -= demoted.weight;
+        _probation.put(demoted.key, demoted);
+        _probationWeight += demoted.weight;
+      }
+      return e.value;
+    }
+    return null;
+  }
+
+  @Override
+  public int put(Object key, Object value, long weight) {
+    remove(key);
+    _sketch.increment(key);
+    _window.put(key, new Entry(key, value, weight));
+    _windowWeight += weight;
+    _weight += weight;
+
+    int evicted = 0;
+    Iterator<Entry> iter = _window.values().iterator();
+    while (_windowWeight > _windowCapacity && iter.hasNext()) {
+      Entry candidate = iter.next();
+      iter.remove();
+      _windowWeight -= candidate.weight;
+      _probation.put(candidate.key, candidate);
+      _probationWeight += candidate.weight;
+      evicted += admit(candidate);
+    }
+    return evicted;
+  }
+
+  // Candidate is already in probation (MRU end), evict until main fits
+  int admit(Entry candidate) {
+    int evicted = 0;
+    boolean alive = true;
+    while (_probationWeight + _protectedWeight > _mainCapacity) {
+      LinkedHashMap<Object, Entry> region = _probation.isEmpty() ? _protected : _probation;
+      Entry victim = region.values().iterator().next();
+      if (alive && victim != candidate && _sketch.frequency(candidate.key) <= _sketch.frequency(victim.key)) {
+        victim = candidate;
+        region = _probation;
+      }
+      if (victim == candidate) {
+        alive = false;
+      }
+      region.remove(victim.key);
+      if (region == _probation) {
+        _probationWeight -= victim.weight;
+      } else {
+        _protectedWeight -= victim.weight;
+      }
+      _weight -= victim.weight;
+      ++evicted;
+    }
+    return evicted;
+  }
+
+  @Override
+  public void remove(Object key) {
+    Entry e;
+    if ((e = _window.remove(key)) != null) {
+      _windowWeight -= e.weight;
+    } else if ((e = _probation.remove(key)) != null) {
+      _probationWeight -= e.weight;
+    } else if ((e = _protected.remove(key)) != null) {
+      _protectedWeight -= e.weight;
+    } else {
+      return;
+    }
+    _weight -= e.weight;
+  }
+
+  @Override
+  public int size() {
+    return _window.size() + _probation.size() + _protected.size();
+  }
+
+  @Override
+  public void clear() {
+    _window.clear();
+    _probation.clear();
+    _protected.clear();
+    _windowWeight = _probationWeight = _protectedWeight = _weight = 0;
+  }
+
+  // Count-min sketch, 4 rows of 4-bit counters (stored in bytes).
+  // All counters are halved every 10 * width increments so that
+  // frequency reflects recent history
+  static class Sketch {
+    static final int[] SEEDS = {0x97CB3127, 0xB3F7A2D9, 0x5C2A9F61, 0x8E5D7C43};
+    final byte[][] _rows;
+    final int _mask, _sampleSize;
+    int _additions;
+
+    Sketch(int expectedSize) {
+      int width = Integer.highestOneBit(Math.max(64, Math.min(1 << 24, expectedSize)) - 1) << 1;
+      _rows = new byte[SEEDS.length][width];
+      _mask = width - 1;
+      _sampleSize = 10 * width;
+    }
+
+    int index(int hash, int row) {
+      int h = (hash + SEEDS[row]) * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & _mask;
+    }
+
+    void increment(Object key) {
+      int hash = key.hashCode();
+      for (int row = 0; row < _rows.length; ++row) {
+        int idx = index(hash, row);
+        if (_rows[row][idx] < 15) {
+          ++_rows[row][idx];
+        }
+      }
+      if (++_additions >= _sampleSize) {
+        for (byte[] counters: _rows) {
+          for (int i = 0; i < counters.length; ++i) {
+            counters[i] = (byte) (counters[i] >>> 1);
+          }
+        }
+        _additions >>>= 1;
+      }
+    }
+
+    int frequency(Object key) {
+      int hash = key.hashCode();
+      int freq = 15;
+      for (int row = 0; row < _rows.length; ++row) {
+        freq = Math.min(freq, _rows[row][index(hash, row)]);
+      }
+      return freq;
+    }
+  }
+}
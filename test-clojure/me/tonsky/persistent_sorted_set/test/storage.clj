@@ -8,7 +8,7 @@
     [clojure.lang RT]
     [java.lang.ref Reference]
     [java.util Comparator Arrays]
-    [me.tonsky.persistent_sorted_set ANode ArrayUtil Branch IStorage Leaf PersistentSortedSet Settings]))
+    [me.tonsky.persistent_sorted_set ANode ArrayUtil Branch CachingStorage CachingStorage$Eviction ALongNode ILongStorage IStorage KeyCodec LazyLeaf Leaf LongBranch LongLeaf MappedFileStorage NodeCodec PersistentLongSortedSet PersistentSortedSet Settings]))
 
 (set! *warn-on-reflection* true)
 
@@ -23,11 +23,12 @@
   (atom
     {:reads 0
      :writes 0
+     :batches 0
      :accessed 0}))
 
 (defmacro with-stats [& body]
   `(do
-     (reset! *stats {:reads 0 :writes 0 :accessed 0})
+     (reset! *stats {:reads 0 :writes 0 :batches 0 :accessed 0})
      ~@body))
 
 (defrecord Storage [*memory *disk ^Settings settings]
@@ -41,8 +42,13 @@
           {:level     (.level node)
            :keys      (.keys node)
            :addresses (when (instance? Branch node)
-                        (.addresses ^Branch node))}))
+                        (.addresses ^Branch node))
+           :counts    (when (instance? Branch node)
+                        (.counts ^Branch node))}))
       address))
+  (storeAll [this nodes]
+    (swap! *stats update :batches inc)
+    (mapv #(.store this %) nodes))
   (accessed [_ address]
     (swap! *stats update :accessed inc)
     nil)
@@ -51,9 +57,10 @@
       (@*memory address)
       (let [{:keys [level 
                     ^java.util.List keys
-                    ^java.util.List addresses]} (edn/read-string (@*disk address))
+                    ^java.util.List addresses
+                    ^java.util.List counts]} (edn/read-string (@*disk address))
             node (if addresses
-                   (Branch. (int level) ^java.util.List keys ^java.util.List addresses settings)
+                   (Branch. (int level) ^java.util.List keys ^java.util.List addresses ^java.util.List counts settings)
                    (Leaf. keys settings))]
         (swap! *stats update :reads inc)
         (swap! *memory assoc address node)
@@ -192,22 +199,29 @@
   (let [size    1000000
         xs      (shuffle (range size))
         set     (into (set/sorted-set* {:branching-factor 64}) xs)
+        storage (storage)
         *stored (atom 0)]
     (set/walk-addresses set
       (fn [addr]
         (is (nil? addr))))
-    (set/store set (storage))
+    (set/store set storage)
     (set/walk-addresses set
       (fn [addr]
         (is (some? addr))
         (swap! *stored inc)))
     (let [set'     (conj set (* 2 size))
-          *stored' (atom 0)]
+          *stored' (atom 0)
+          ;; appending to full last leaf keeps it as is and starts a new one
+          last     (loop [^ANode node (.root ^PersistentSortedSet set)]
+                     (if (instance? Branch node)
+                       (recur (.child ^Branch node storage (dec (.len node))))
+                       node))
+          changed  (if (= 64 (.len ^ANode last)) 3 4)]
       (set/walk-addresses set'
         (fn [addr]
           (if (some? addr)
             (swap! *stored' inc))))
-      (is (= (- @*stored 4) @*stored')))))
+      (is (= (- @*stored changed) @*stored')))))
 
 (deftest test-lazyness
   (let [size       1000000
@@ -297,7 +311,488 @@
         _       (is (every? #(not (loaded' %)) xs))
         _       (is (< (durable-ratio loaded') 1.0))
         
-        ; count fetches everything
+        ; count uses stored counts, fetches nothing
+        lcount  (loaded-ratio loaded)
         _       (is (= (count loaded) (count original)))
-        l0      (loaded-ratio loaded)
-        _       (is (= 1.0 l0))]))
+        _       (is (= lcount (loaded-ratio loaded)))]))
+
+(deftest test-positional
+  (let [size     100000
+        xs       (shuffle (range size))
+        original (into (set/sorted-set* {:branching-factor 64}) xs)
+        storage  (->Storage (atom {}) (atom {}) (Settings. 64))
+        address  (set/store original storage)
+        loaded   (set/restore address storage {:branching-factor 64})]
+    (with-stats
+      (is (= size (count loaded)))
+      (is (= 1 (:reads @*stats))))
+    (with-stats
+      (is (= 50000 (nth loaded 50000)))
+      (is (= 2 (:reads @*stats))))
+    (with-stats
+      (is (= 77777 (set/index-of loaded 77777)))
+      (is (= -1 (set/index-of loaded 77777.5)))
+      (is (<= (:reads @*stats) 4)))
+    (with-stats
+      (is (= 20001 (set/count-slice loaded 10000 30000)))
+      (is (= 20000 (set/count-slice loaded 9999.5 29999.5)))
+      (is (= 0 (set/count-slice loaded 30000 10000)))
+      (is (= size (set/count-slice loaded nil nil)))
+      ;; two root-to-leaf paths
+      (is (<= (:reads @*stats) 6)))
+    (with-stats
+      (is (< 10000 (set/estimate-count-slice loaded 10000 30000) 40000))
+      (is (= 0 (:reads @*stats))))
+    (is (= (range 400 410) (.sliceByIndex ^PersistentSortedSet loaded 400 410)))
+    (is (= [:none 0 (dec size)] [(nth loaded size :none) (nth loaded 0) (nth loaded (dec size))]))
+    (is (thrown? IndexOutOfBoundsException (nth loaded -1)))
+
+    (testing "after modifications"
+      (let [loaded' (-> loaded
+                      (disj 10 20 30)
+                      (conj -1 -2)
+                      (transient)
+                      (conj! -3)
+                      (disj! 50000)
+                      (persistent!))
+            sorted  (vec loaded')]
+        (is (every? #(= (nth sorted %) (nth loaded' %)) (range 0 size 97)))
+        (is (every? #(= % (set/index-of loaded' (nth sorted %))) (range 0 size 97)))
+        (let [address' (set/store loaded' storage)
+              loaded'' (set/restore address' storage {:branching-factor 64})]
+          (with-stats
+            (is (= (count sorted) (count loaded'')))
+            (is (= 1 (:reads @*stats))))
+          (is (every? #(= (nth sorted %) (nth loaded'' %)) (range 0 (count sorted) 97))))))))
+
+(deftest test-conj-all-lazy
+  (let [size    100000
+        storage (->Storage (atom {}) (atom {}) (Settings. 64))
+        address (set/store (into (set/sorted-set* {:branching-factor 64}) (range 0 (* 2 size) 2)) storage)
+        loaded  (set/restore address storage {:branching-factor 64})
+        adds    (range 100001 102001 2)
+        loaded' (with-stats
+                  (let [res (set/conj-all loaded adds)]
+                    ;; root + 1-2 branches + leaves covering [100000 102000]
+                    (is (< (:reads @*stats) 70))
+                    res))]
+    (is (= (+ size (count adds)) (count loaded')))
+    (is (< 0.9 (durable-ratio loaded') 1.0))
+    (with-stats
+      (set/store loaded' storage)
+      (is (< (:writes @*stats) 100)))
+    (with-stats
+      (let [res (set/disj-all loaded' adds)]
+        (is (= (vec (range 0 (* 2 size) 2)) (vec res)))))))
+
+(deftest test-store-batched
+  (let [xs      (shuffle (range 100000))
+        set     (into (set/sorted-set* {:branching-factor 64}) xs)
+        storage (storage)]
+    (testing "one batch per level"
+      (with-stats
+        (set/store set storage)
+        (is (= 3 (:batches @*stats)))
+        (is (< 2000 (:writes @*stats)))))
+    (testing "incremental"
+      (with-stats
+        (set/store (conj set -1) storage)
+        (is (= 3 (:batches @*stats)))
+        (is (= 3 (:writes @*stats)))))
+    (testing "parallel"
+      (let [executor (java.util.concurrent.Executors/newFixedThreadPool 4)
+            set'     (into (set/sorted-set* {:branching-factor 64}) xs)]
+        (try
+          (with-stats
+            (let [address (set/store set' storage {:executor executor})
+                  loaded  (set/restore address storage {:branching-factor 64})]
+              (is (< 3 (:batches @*stats)))
+              (is (= (vec set) (vec loaded)))
+              (is (= 1.0 (durable-ratio set')))
+              (is (= 100000 (count loaded)))))
+          (finally
+            (.shutdown executor)))))))
+
+(deftest test-prefetch
+  (let [size        100000
+        base        ^IStorage (->Storage (atom {}) (atom {}) (Settings. 64))
+        address     (set/store (into (set/sorted-set* {:branching-factor 64}) (range size)) base)
+        *misses     (atom 0)
+        *prefetched (atom [])
+        storage     (reify IStorage
+                      (store [_ node]
+                        (.store base node))
+                      (restore [_ address]
+                        (when-not (contains? @(:*memory ^Storage base) address)
+                          (swap! *misses inc))
+                        (.restore base address))
+                      (prefetchSize [_]
+                        8)
+                      (prefetch [_ addresses]
+                        (swap! *prefetched into addresses)
+                        (doseq [address addresses]
+                          (.restore base address))))]
+    (testing "seq"
+      (let [loaded (set/restore address storage {:branching-factor 64})]
+        (is (= (range size) (seq loaded)))
+        ;; only first leaf in each branch is not prefetched
+        (is (< @*misses (/ (count @*prefetched) 20)))
+        ;; ascending keys pack leaves fully, 1563 of them
+        (is (< 1500 (count @*prefetched)))
+        (is (= (count @*prefetched) (count (distinct @*prefetched))))))
+    
+    (reset! (:*memory ^Storage base) {})
+    (reset! *misses 0)
+    (reset! *prefetched [])
+    (testing "rseq"
+      (let [loaded (set/restore address storage {:branching-factor 64})]
+        (is (= (reverse (range size)) (rseq loaded)))
+        (is (< @*misses (/ (count @*prefetched) 20)))
+        (is (< 1500 (count @*prefetched)))
+        (is (= (count @*prefetched) (count (distinct @*prefetched))))))))
+
+(deftest test-caching-storage
+  (let [size    100000
+        base    (->Storage (atom {}) (atom {}) (Settings. 64))
+        address (set/store (into (set/sorted-set* {:branching-factor 64}) (range size)) base)
+        nodes   (count @(:*disk base))
+        xs      (vec (repeatedly 1000 #(rand-int size)))]
+    (doseq [^CachingStorage$Eviction eviction (CachingStorage$Eviction/values)]
+      (testing (str eviction)
+        (testing "everything fits"
+          (reset! (:*memory base) {})
+          (let [storage (CachingStorage. base (* 2 nodes) eviction)]
+            (is (= (range size) (seq (set/restore address storage {:branching-factor 64}))))
+            (is (= nodes (.misses storage)))
+            (is (= 0 (.hits storage)))
+            (is (= (range size) (seq (set/restore address storage {:branching-factor 64}))))
+            ;; root comes from cache, its children are already in memory
+            (is (= nodes (.misses storage)))
+            (is (= 1 (.hits storage)))
+            (is (= 0 (.evictions storage)))
+            (is (= nodes (.size storage) (.weight storage)))))
+
+        (testing "bounded"
+          (reset! (:*memory base) {})
+          (let [storage (CachingStorage. base 100 eviction)]
+            (dotimes [_ 3]
+              (let [loaded (set/restore address storage {:branching-factor 64})]
+                (is (= (range size) (seq loaded)))
+                (is (every? #(contains? loaded %) xs))))
+            (is (<= (.size storage) 100))
+            (is (pos? (.hits storage)))
+            (is (pos? (.evictions storage)))
+            (is (= (.evictions storage) (- (.misses storage) (.size storage))))))
+
+        (testing "bytes"
+          (reset! (:*memory base) {})
+          (let [storage (CachingStorage. ^IStorage base 100000 eviction ^java.util.function.ToLongFunction CachingStorage/BYTES (int 4))
+                loaded  (set/restore address storage {:branching-factor 64})]
+            (is (= (range size) (seq loaded)))
+            (is (<= (.weight storage) 100000))
+            (is (pos? (.evictions storage)))))))
+
+    (testing "store through cache"
+      (let [storage (CachingStorage. base 10000)
+            set     (into (set/sorted-set* {:branching-factor 64}) (range 10000))
+            address (set/store set storage)]
+        (is (= 0 (.misses storage)))
+        (is (= (range 10000) (seq (set/restore address storage {:branching-factor 64}))))
+        (is (= 0 (.misses storage)))
+        (is (pos? (.hits storage)))))))
+
+(defn codec-storage
+  "IStorage that keeps nodes encoded by NodeCodec in a map of long -> byte[]"
+  [^NodeCodec codec *disk]
+  (reify IStorage
+    (store [_ node]
+      (let [address (count @*disk)]
+        (swap! *disk assoc address (.encodeBytes codec node))
+        address))
+    (restore [_ address]
+      (.decode codec ^bytes (@*disk address)))))
+
+(deftest test-codec
+  (let [settings (Settings. 32)
+        norm     #(if (bytes? %) (vec %) %)]
+    (doseq [[name ^KeyCodec key-codec cmp gen]
+            [["long"   KeyCodec/LONG   compare #(- (rand-int 2000000) 1000000)]
+             ["string" KeyCodec/STRING compare #(str "prefix/" (rand-int 100000) "/é😀")]
+             ["bytes"  KeyCodec/BYTES  #(compare (String. ^bytes %1) (String. ^bytes %2)) #(.getBytes (str "key-" (rand-int 100000)))]
+             ["tuple"  (KeyCodec/tuple (into-array KeyCodec [KeyCodec/LONG KeyCodec/STRING])) compare #(vector (rand-int 100) (str (rand-int 100)))]]]
+      (doseq [indexed [false true]]
+        (testing (str name (when indexed " indexed"))
+          (let [keys    (->> (repeatedly 5000 gen) (into (sorted-set-by cmp)) vec)
+                codec   (NodeCodec. key-codec KeyCodec/LONG settings (boolean indexed))
+                *disk   (atom {})
+                set     (into (set/sorted-set* {:cmp cmp :branching-factor 32}) keys)
+                address (set/store set (codec-storage codec *disk))
+                loaded  (set/restore-by cmp address (codec-storage codec *disk) {:branching-factor 32})]
+            (is (= (map norm keys) (map norm (seq loaded))))
+            (is (= (count keys) (count loaded)))
+            (is (every? #(contains? loaded %) (take 100 keys)))
+            (testing "leaf roundtrip"
+              (let [leaf (Leaf. ^java.util.List (take 10 keys) settings)
+                    ^Leaf leaf' (.decode codec (.encode codec leaf))]
+                (is (= indexed (instance? LazyLeaf leaf')))
+                (is (= 10 (.len leaf')))
+                (is (= (map norm (.keys leaf)) (map norm (.keys leaf'))))))))))
+
+    (testing "lazy leaves"
+      (let [codec   (NodeCodec. KeyCodec/LONG KeyCodec/LONG settings true)
+            *disk   (atom {})
+            address (set/store (into (set/sorted-set* {:branching-factor 32}) (range 10000)) (codec-storage codec *disk))
+            *leaves (atom [])
+            storage (let [^IStorage base (codec-storage codec *disk)]
+                      (reify IStorage
+                        (store [_ node] (.store base node))
+                        (restore [_ address]
+                          (let [node (.restore base address)]
+                            (when (instance? LazyLeaf node)
+                              (swap! *leaves conj node))
+                            node))))
+            loaded  (set/restore address storage {:branching-factor 32})]
+        (is (every? #(contains? loaded %) (range 0 10000 100)))
+        (is (not (contains? loaded 10000)))
+        (is (= (map #(< % 10000) (range 0 10100 50))
+               (set/contains-batch loaded (range 0 10100 50))))
+        (is (< 50 (count @*leaves)))
+        (is (not-any? #(.materialized ^LazyLeaf %) @*leaves))
+        (is (= (range 10 20) (take 10 (set/slice loaded 10 nil))))
+        (is (some #(.materialized ^LazyLeaf %) @*leaves))
+        (let [loaded' (conj loaded 5000.5)]
+          (is (= (concat (range 5001) [5000.5] (range 5001 10000)) (seq loaded'))))
+        (is (every? #(.materialized ^LazyLeaf %) @*leaves))))
+
+    (testing "varint"
+      (let [buf (java.nio.ByteBuffer/allocate 100)
+            xs  [0 1 -1 127 128 -129 Long/MAX_VALUE Long/MIN_VALUE]]
+        (doseq [x xs]
+          (NodeCodec/writeSignedVarLong buf x))
+        (.flip buf)
+        (is (= xs (repeatedly (count xs) #(NodeCodec/readSignedVarLong buf))))))
+
+    (testing "compact"
+      (let [codec (NodeCodec. KeyCodec/LONG KeyCodec/LONG settings)
+            leaf  (Leaf. ^java.util.List (vec (range 1000000 1000032)) settings)]
+        ;; 2 header bytes, 3 bytes for the first key, 1 byte for each delta
+        (is (= (+ 2 3 31) (alength (.encodeBytes codec leaf))))))))
+
+(deftest test-mapped-file-storage
+  (let [dir      (java.nio.file.Files/createTempDirectory "pss" (make-array java.nio.file.attribute.FileAttribute 0))
+        opts     {:branching-factor 32}
+        open     #(MappedFileStorage. dir KeyCodec/LONG (Settings. 32) 65536 true)
+        storage  ^MappedFileStorage (open)
+        set1     (into (set/sorted-set* opts) (range 50000))
+        address1 (set/store set1 storage)]
+    (is (= address1 (.root storage)))
+    (is (< 1 (.segmentCount storage)))
+    (is (= (range 50000) (seq (set/restore address1 storage opts))))
+
+    (testing "incremental"
+      (let [set2     (reduce disj (set/restore address1 storage opts) (range 0 50000 2))
+            address2 (set/store set2 storage)
+            size     (.sizeOnDisk storage)]
+        (is (= address2 (.root storage)))
+        (is (= (range 1 50000 2) (seq (set/restore address2 storage opts))))
+
+        (testing "compact"
+          (let [[address3] (.compact storage (long-array [address2]))]
+            (is (< (.sizeOnDisk storage) size))
+            (is (= address3 (.root storage)))
+            (is (= (range 1 50000 2) (seq (set/restore address3 storage opts))))
+            (is (thrown? IllegalArgumentException (seq (set/restore address1 storage opts))))
+
+            (testing "reopen"
+              (.close storage)
+              (let [storage' ^MappedFileStorage (open)]
+                (is (= address3 (.root storage')))
+                (is (= (range 1 50000 2) (seq (set/restore (.root storage') storage' opts))))
+                (.close storage')))))))
+
+    (doseq [f (reverse (file-seq (.toFile dir)))]
+      (.delete ^java.io.File f))))
+
+(deftest test-mapped-file-compact-restores
+  (let [dir       (java.nio.file.Files/createTempDirectory "pss" (make-array java.nio.file.attribute.FileAttribute 0))
+        opts      {:branching-factor 32}
+        *restores (atom 0)
+        storage   ^MappedFileStorage (proxy [MappedFileStorage] [dir KeyCodec/LONG (Settings. 32) 65536 true]
+                                       (restore [address]
+                                         (swap! *restores inc)
+                                         (let [^MappedFileStorage this this]
+                                           (proxy-super restore address))))
+        address1  (set/store (into (set/sorted-set* opts) (range 50000)) storage)
+        set2      (reduce disj (set/restore address1 storage opts) (range 49000 50000))
+        address2  (set/store set2 storage)
+        leaves    (quot (count set2) 32)
+        _         (reset! *restores 0)
+        [address3] (.compact storage (long-array [address2]))]
+    ;; only branches (to mark) and copied nodes are restored, untouched leaves aren’t
+    (is (< @*restores (quot leaves 2)))
+    (is (= (range 49000) (seq (set/restore address3 storage opts))))
+    (.close storage)
+    (doseq [f (reverse (file-seq (.toFile dir)))]
+      (.delete ^java.io.File f))))
+
+(defrecord LongStorage [*disk ^Settings settings]
+  ILongStorage
+  (store [_ node]
+    (swap! *stats update :writes inc)
+    (let [address (gen-addr)]
+      (swap! *disk assoc address
+        {:level     (.level ^ALongNode node)
+         :keys      (vec (.keys ^ALongNode node))
+         :addresses (when (instance? LongBranch node)
+                      (vec (.addresses ^LongBranch node)))})
+      address))
+  (restore [_ address]
+    (swap! *stats update :reads inc)
+    (let [{:keys [level keys addresses]} (@*disk address)]
+      (if addresses
+        (LongBranch. (int level) (long-array keys) ^java.util.List addresses settings)
+        (LongLeaf. (long-array keys) settings)))))
+
+(deftest test-long-storage
+  (let [settings (Settings. 32)
+        storage  (->LongStorage (atom {}) settings)
+        set      (into (set/long-sorted-set* {:branching-factor 32}) (range 10000))
+        address  (.store ^PersistentLongSortedSet set storage)]
+    (with-stats
+      (let [loaded (PersistentLongSortedSet/restore address storage settings)]
+        (is (contains? loaded 5000))
+        (is (< (:reads @*stats) 10))
+        (is (= (range 10000) (seq loaded)))
+        (let [loaded' (-> loaded (disj 5000) (conj 10000))
+              _       (reset! *stats {:reads 0 :writes 0 :batches 0 :accessed 0})
+              address' (.store ^PersistentLongSortedSet loaded' storage)]
+          (is (< 0 (:writes @*stats) 10))
+          (is (= (concat (range 5000) (range 5001 10001))
+                (seq (PersistentLongSortedSet/restore address' storage settings)))))))))
+
+(deftest test-diff
+  (let [size     100000
+        v1       (into (set/sorted-set* {:branching-factor 64}) (range 0 size 2))
+        added    [-1 5 77777 (inc size)]
+        removed  [0 50000 99998]
+        change   (fn [set]
+                   (as-> set %
+                     (reduce conj % added)
+                     (reduce disj % removed)))
+        v2       (change v1)
+        expected (sort-by first (concat (map #(vector % true) added) (map #(vector % false) removed)))]
+    (testing "in memory"
+      (is (= expected (set/diff v1 v2)))
+      (is (= (map (fn [[k v]] [k (not v)]) expected) (set/diff v2 v1)))
+      (is (nil? (set/diff v1 v1)))
+      (is (= (map #(vector % true) (range 0 100 2)) (set/diff (set/sorted-set) (into (set/sorted-set) (range 0 100 2))))))
+
+    (testing "stored"
+      (let [storage  (->Storage (atom {}) (atom {}) (Settings. 64))
+            address1 (set/store v1 storage)
+            address2 (set/store (change (set/restore address1 storage {:branching-factor 64})) storage)
+            v1'      (set/restore address1 storage {:branching-factor 64})
+            v2'      (set/restore address2 storage {:branching-factor 64})]
+        (with-stats
+          (is (= expected (set/diff v1' v2')))
+          ;; only paths to changed keys, not ~1500 nodes of the whole set
+          (is (< (:reads @*stats) 50)))))
+
+    (testing "change at leaf boundary"
+      (let [storage  (->Storage (atom {}) (atom {}) (Settings. 64))
+            address1 (set/store (into (set/sorted-set* {:branching-factor 64}) (range 0 size 2)) storage)
+            v1'      (set/restore address1 storage {:branching-factor 64})
+            ;; last key of a leaf in the middle of its parent
+            k        (-> ^Branch (.root ^PersistentSortedSet v1') ^Branch (.child ^IStorage storage (int 0)) ^Leaf (.child ^IStorage storage (int 3)) .maxKey)
+            address2 (set/store (disj v1' k) storage)
+            ;; nothing restored yet
+            storage  (->Storage (atom {}) (:*disk storage) (Settings. 64))
+            v1'      (set/restore address1 storage {:branching-factor 64})
+            v2'      (set/restore address2 storage {:branching-factor 64})]
+        (with-stats
+          (is (= [[k false]] (set/diff v1' v2')))
+          (is (= [[k true]] (set/diff v2' v1')))
+          ;; 2 roots, 2 parents, 2 versions of the leaf. Neighbour leaves aren’t restored
+          (is (<= (:reads @*stats) 6)))))))
+
+(deftest test-set-algebra
+  (let [storage (->Storage (atom {}) (atom {}) (Settings. 64))
+        opts    {:branching-factor 64}
+        lo      (set/restore (set/store (into (set/sorted-set* opts) (range 0 100000)) storage) storage opts)
+        hi      (set/restore (set/store (into (set/sorted-set* opts) (range 200000 300000)) storage) storage opts)
+        mid     (set/restore (set/store (into (set/sorted-set* opts) (range 50000 50100)) storage) storage opts)]
+    (with-stats
+      (let [u (set/union lo hi)]
+        ;; only nodes on the boundary are restored
+        (is (< (:reads @*stats) 20))
+        (is (= 200000 (count u)))
+        (is (= (concat (range 0 100000) (range 200000 300000)) (seq u)))))
+    (with-stats
+      (is (= (range 50000 50100) (seq (set/intersection lo mid))))
+      (is (< (:reads @*stats) 20)))
+    (with-stats
+      (let [d (set/difference lo mid)]
+        (is (< (:reads @*stats) 20))
+        (is (= (concat (range 0 50000) (range 50100 100000)) (seq d)))
+        (is (= (count d) 99900))
+        (is (= (seq d) (seq (set/restore (set/store d storage) storage opts))))))
+
+    (testing "stored without counts"
+      (let [*disk    (atom {})
+            address1 (set/store (into (set/sorted-set* opts) (range 0 100000)) (->Storage (atom {}) *disk (Settings. 64)))
+            address2 (set/store (into (set/sorted-set* opts) (range 200000 300000)) (->Storage (atom {}) *disk (Settings. 64)))
+            _        (swap! *disk update-vals #(pr-str (assoc (edn/read-string %) :counts nil)))
+            storage  (->Storage (atom {}) *disk (Settings. 64))
+            lo'      (set/restore address1 storage opts)
+            hi'      (set/restore address2 storage opts)]
+        (with-stats
+          (let [u (set/union lo' hi')]
+            ;; sizes of grafted subtrees are unknown, but they aren’t restored to count them
+            (is (< (:reads @*stats) 20))
+            (is (= -1 (.-_count ^PersistentSortedSet u)))
+            (is (= 200000 (count u)))))))))
+
+(deftest test-stats
+  (let [opts  {:branching-factor 64}
+        v     (into (set/sorted-set* opts) (range 0 10000))
+        s     (set/stats v)
+        total (reduce + (:nodes s))]
+    (is (= 3 (:depth s)))
+    (is (= 1 (peek (:nodes s))))
+    (is (= (dec total) (:unstored s)))
+    (is (= 0 (:stored s) (:unloaded s) (:soft-refs s)))
+    (is (= (:nodes s) (mapv #(reduce + %) (:fill s))))
+    (is (< (* 10000 16) (:bytes s)))
+
+    (let [storage (->Storage (atom {}) (atom {}) (Settings. 64))
+          address (set/store v storage)
+          s'      (set/stats v)]
+      (is (= (:nodes s) (:nodes s')))
+      (is (= (dec total) (:stored s')))
+      (is (= 0 (:unstored s')))
+      (testing "restored"
+        (let [v' (set/restore address (->Storage (atom {}) (:*disk storage) (Settings. 64)) opts)]
+          (with-stats
+            (is (= {:depth 0 :unloaded 1} (select-keys (set/stats v') [:depth :unloaded])))
+            (is (contains? v' 5000))
+            (let [s (set/stats v')]
+              (is (= 3 (:depth s)))
+              (is (= [1 1 1] (:nodes s)))
+              ;; path to 5000 is resident, its siblings are not
+              (is (= 2 (:stored s)))
+              (is (< 10 (:unloaded s)))
+              (is (= 3 (:soft-refs s))))
+            (is (= 3 (:reads @*stats)))))))))
+
+(deftest test-min-branching-factor
+  (let [rm     (take 1000 (shuffle (range 10000)))
+        leaves (fn [opts]
+                 ;; half-full leaves, any remove goes below default threshold
+                 (let [set  (set/from-sorted-array compare (to-array (range 10000)) 10000 (assoc opts :fill-factor 0.5))
+                       set' (reduce disj set rm)]
+                   (is (= 625 (first (:nodes (set/stats set)))))
+                   (is (= (remove (clojure.core/set rm) (range 10000)) (seq set')))
+                   (first (:nodes (set/stats set')))))]
+    (is (< (leaves {:branching-factor 32}) 625))
+    ;; nothing merged, leaves just get shorter
+    (is (= 625 (leaves {:branching-factor 32 :min-branching-factor 1})))))